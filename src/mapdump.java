@@ -2,7 +2,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.TreeSet;
 
+import java.io.File;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.io.PrintStream;
@@ -28,6 +31,18 @@ public class mapdump {
 	String image = null;
 	int format = Map.FORMAT_CSV;
 
+	// batch mode
+	String batchDir = null;
+	String[] inputs = new String[0];
+	TreeSet<Integer> formats = new TreeSet<Integer>();
+
+	// diff mode
+	String diff = null;
+	String diffImage = null;
+
+	// locate mode
+	String locate = null;
+
 	public MapDumpOptions() {
 	    Option r = OptionBuilder.withArgName("maps.kp [...]").hasArg().hasOptionalArgs()
 		.withDescription(
@@ -38,13 +53,38 @@ public class mapdump {
 		    "Generate min/max columns and image size based on this image")
 		.create('i');
 
+	    Option b = OptionBuilder.withArgName("outdir").hasArg()
+		.withDescription(
+		    "Batch mode: dump every input to outdir, using image stem.bin next to each input")
+		.create('B');
+
+	    Option D = OptionBuilder.withArgName("new.kp").hasArg()
+		.withDescription(
+		    "Diff mode: report maps added, removed, moved or changed in new.kp")
+		.create('D');
+	    Option I = OptionBuilder.withArgName("new.bin").hasArg()
+		.withDescription(
+		    "Diff mode: compare map data in this image with -i <image.bin>")
+		.create('I');
+
+	    Option L = OptionBuilder.withArgName("new.bin").hasArg()
+		.withDescription(
+		    "Locate maps in new.bin by their data in -i <image.bin>, and dump them at their new addresses")
+		.create('L');
+
+	    Option c = new Option("c", "Generate csv (default)");
 	    Option d = new Option("d", "Generate raw dump");
 	    Option o = new Option("o", "Generate old xdf (requires -i <image.bin>)");
 	    Option x = new Option("x", "Generate xml xdf (requires -i <image.bin>)");
 
 	    this.addOption(r);
 	    this.addOption(i);
+	    this.addOption(b);
+	    this.addOption(D);
+	    this.addOption(I);
+	    this.addOption(L);
 
+	    this.addOption(c);
 	    this.addOption(d);
 	    this.addOption(o);
 	    this.addOption(x);
@@ -58,10 +98,41 @@ public class mapdump {
 		this.refs = line.getOptionValues("r");
 	    }
 
+	    if (line.hasOption('B')) {
+		ParseBatch(line);
+		return;
+	    }
+
 	    if (line.hasOption('i')) {
 		this.image = line.getOptionValue("i");
 	    }
 
+	    if (line.hasOption('D')) {
+		if (line.hasOption('d') || line.hasOption('o') ||
+		    line.hasOption('x') || line.hasOption('r')) {
+		    throw new ParseException("Can't use -d, -o, -x or -r with -D");
+		}
+		this.diff = line.getOptionValue("D");
+		if (line.hasOption('I')) {
+		    if (this.image == null) {
+			throw new ParseException("-I requires -i <image.bin> to compare against");
+		    }
+		    this.diffImage = line.getOptionValue("I");
+		}
+	    } else if (line.hasOption('I')) {
+		throw new ParseException("-I requires -D <new.kp>");
+	    }
+
+	    if (line.hasOption('L')) {
+		if (line.hasOption('D')) {
+		    throw new ParseException("Can't use -L with -D");
+		}
+		if (this.image == null) {
+		    throw new ParseException("-L requires -i <image.bin> to find map data in");
+		}
+		this.locate = line.getOptionValue("L");
+	    }
+
 	    if (line.hasOption('d')) {
 		this.format = Map.FORMAT_DUMP;
 	    }
@@ -107,83 +178,260 @@ public class mapdump {
 	    }
 	}
 
+	// in batch mode, formats can be combined, and images are per input
+	private void ParseBatch(CommandLine line) throws ParseException {
+	    if (line.hasOption('i')) {
+		throw new ParseException("Can't use -i with -B; images are found by input stem");
+	    }
+
+	    this.batchDir = line.getOptionValue("B");
+	    if (!new File(this.batchDir).isDirectory()) {
+		throw new ParseException("'" + this.batchDir + "' is not a directory");
+	    }
+
+	    if (line.hasOption('d')) this.formats.add(Map.FORMAT_DUMP);
+	    if (line.hasOption('c')) this.formats.add(Map.FORMAT_CSV);
+	    if (line.hasOption('o')) this.formats.add(Map.FORMAT_OLD_XDF);
+	    if (line.hasOption('x')) this.formats.add(Map.FORMAT_XDF);
+	    if (this.formats.isEmpty()) this.formats.add(Map.FORMAT_CSV);
+
+	    this.inputs = line.getArgs();
+	    if (this.inputs.length<=0) {
+		throw new ParseException("You must specify at least one input filename");
+	    }
+	}
+
 	public String Usage() {
 	    StringWriter sw = new StringWriter();
 	    HelpFormatter formatter = new HelpFormatter();
 	    formatter.printOptions(new PrintWriter(sw), 80, this, 1, 3);
 	    return 
 		  "Usage: mapdump [options] maps.kp [outputfile]\n"
+		+ "       mapdump [-r maps.kp ...] -B outdir [-c] [-d] [-o] [-x] maps.kp [...]\n"
+		+ "       mapdump -D new.kp [-i image.bin [-I new.bin]] maps.kp [outputfile]\n"
+		+ "       mapdump -i image.bin -L new.bin [-x] maps.kp [outputfile]\n"
 		+ "Options:\n"
 		+ sw.getBuffer().toString();
 	}
     }
 
-    public static void main(String[] args) throws Exception
-    {
-	MapDumpOptions opts = new MapDumpOptions();
-
-	try {
-	    opts.Parse(args);
-	} catch (ParseException e) { 
-	    System.err.println(e.getMessage());
-	    System.err.println(opts.Usage());
-	    return;
+    private static String suffix(int format) {
+	switch(format) {
+	    case Map.FORMAT_DUMP: return ".txt";
+	    case Map.FORMAT_CSV: return ".csv";
+	    case Map.FORMAT_OLD_XDF: return "_old.xdf";
+	    case Map.FORMAT_XDF: return ".xdf";
+	    default: return "";
 	}
+    }
 
-	Parser mp = new Parser(opts.input);
-	ArrayList<Parser> refs = new ArrayList<Parser>();
-	ByteBuffer imagebuf=null;
-	String refsHeader="";
-	for(String s: opts.refs) {
-	    refs.add(new Parser(s));
-	    refsHeader+=",\"" + s + "\"";
+    // stem.bin, or for dated copies (stem-YYYYMMDD.kp), the undated stem.bin
+    private static String findImage(String input) {
+	File f = new File(Files.stem(input) + ".bin");
+	if (f.canRead()) return f.getPath();
+	String name = f.getName();
+	int dash = name.indexOf('-');
+	if (dash>0) {
+	    f = new File(f.getParentFile(), name.substring(0, dash) + ".bin");
+	    if (f.canRead()) return f.getPath();
 	}
-	if(opts.image!=null) {
-	    MMapFile mmap = new MMapFile(opts.image, ByteOrder.LITTLE_ENDIAN);
-	    imagebuf = mmap.getByteBuffer();
+	return null;
+    }
+
+    // parse each mappack once, even if it is both a reference and an input
+    private static Parser parse(HashMap<String, Parser> cache, String fname)
+	throws Exception {
+	String key = new File(fname).getCanonicalPath();
+	Parser p = cache.get(key);
+	if (p==null) {
+	    p = new Parser(fname);
+	    cache.put(key, p);
 	}
-	switch(opts.format) {
+	return p;
+    }
+
+    private static void dump(PrintStream out, Parser mp, ByteBuffer imagebuf,
+	int format, ArrayList<Parser> refs, String refsHeader) throws Exception
+    {
+	switch(format) {
 	    case Map.FORMAT_CSV:
-		opts.output.print(Map.CSVHeader()+refsHeader);
-		opts.output.println();
+		out.print(Map.CSVHeader()+refsHeader);
+		out.println();
 		break;
 	    case Map.FORMAT_OLD_XDF:
-		opts.output.print("XDF\n1.110000\n\n");
+		out.print("XDF\n1.110000\n\n");
 		break;
 	    case Map.FORMAT_XDF:
 		Date date = new Date();
-		opts.output.print("<!-- Written " + date.toString() + " -->\n");
-		opts.output.print("<XDFFORMAT version=\"1.50\">\n");
+		out.print("<!-- Written " + date.toString() + " -->\n");
+		out.print("<XDFFORMAT version=\"1.50\">\n");
 		break;
 	    default: break;
 	}
 	for(Project p: mp.projects) {
-	    opts.output.print(p.toString(opts.format, imagebuf));
+	    out.print(p.toString(format, imagebuf));
 	    /*
 	    for(Folder f: p.folders) {
-		System.err.print(f.toString(opts.format));
+		System.err.print(f.toString(format));
 		System.err.println();
 	    }
 	    */
 	    if (p.maps==null) continue;
 
 	    for(Map m: p.maps) {
-		opts.output.print(m.toString(opts.format, imagebuf));
-		if(opts.format == Map.FORMAT_CSV) {
+		out.print(m.toString(format, imagebuf));
+		if(format == Map.FORMAT_CSV) {
 		    for(Parser pa: refs) {
 			ArrayList<Map> matches = pa.find(m);
 			if(matches.size()>0) {
 			    Map r = matches.get(0);
-			    opts.output.print(",\"" + r.name + "\"");
+			    out.print(",\"" + r.name + "\"");
 			} else {
-			    opts.output.print(",\"\"");
+			    out.print(",\"\"");
 			}
 		    }
-		    opts.output.println();
+		    out.println();
+		}
+	    }
+	}
+	if (format==Map.FORMAT_XDF)
+	    out.print("</XDFFORMAT>\n");
+    }
+
+    private static void batch(MapDumpOptions opts) throws Exception
+    {
+	HashMap<String, Parser> cache = new HashMap<String, Parser>();
+	ArrayList<Parser> refs = new ArrayList<Parser>();
+	String refsHeader="";
+	for(String s: opts.refs) {
+	    refs.add(parse(cache, s));
+	    refsHeader+=",\"" + s + "\"";
+	}
+
+	for(String input: opts.inputs) {
+	    Parser mp = parse(cache, input);
+	    ByteBuffer imagebuf=null;
+	    String image = findImage(input);
+	    if(image!=null) {
+		MMapFile mmap = new MMapFile(image, ByteOrder.LITTLE_ENDIAN);
+		imagebuf = mmap.getByteBuffer();
+	    }
+
+	    // formats are sorted, so csv is done before the xdfs,
+	    // which may swap x/y of large tables
+	    for(int format: opts.formats) {
+		if (imagebuf==null && (format==Map.FORMAT_OLD_XDF ||
+		    format==Map.FORMAT_XDF)) {
+		    System.err.println(input + ": no image found, skipping " +
+			suffix(format));
+		    continue;
 		}
+		File f = new File(opts.batchDir,
+		    Files.filenameStem(input) + suffix(format));
+		PrintStream out = new PrintStream(f);
+		try {
+		    dump(out, mp, imagebuf, format, refs, refsHeader);
+		} finally {
+		    out.close();
+		}
+		System.err.println(input + " -> " + f.getPath());
+	    }
+	}
+    }
+
+    private static ByteBuffer mmap(String image) throws Exception {
+	if(image==null) return null;
+	MMapFile mmap = new MMapFile(image, ByteOrder.LITTLE_ENDIAN);
+	return mmap.getByteBuffer();
+    }
+
+    private static void diff(MapDumpOptions opts) throws Exception
+    {
+	Parser a = new Parser(opts.input);
+	Parser b = new Parser(opts.diff);
+	ByteBuffer imageA = mmap(opts.image);
+	ByteBuffer imageB = mmap(opts.diffImage);
+
+	opts.output.print(ProjectDiff.CSVHeader());
+	opts.output.println();
+	// Parser only ever produces one project, but be safe
+	for(int i=0; i<a.projects.size() && i<b.projects.size(); i++) {
+	    ProjectDiff d = new ProjectDiff(a.projects.get(i),
+		b.projects.get(i));
+	    if(imageA!=null && imageB!=null) d.compare(imageA, imageB);
+	    for(ProjectDiff.Entry e: d.entries) {
+		if(e.status().equals("same")) continue;
+		opts.output.print(e);
+		opts.output.println();
+	    }
+	}
+    }
+
+    // move maps to where their data is found in the new image, and dump
+    // only those against the new image
+    private static void locate(MapDumpOptions opts) throws Exception
+    {
+	Parser mp = new Parser(opts.input);
+	ByteBuffer ref = mmap(opts.image);
+	ByteBuffer image = mmap(opts.locate);
+
+	for(Project p: mp.projects) {
+	    if (p.maps==null) continue;
+	    MapLocator l = new MapLocator(p, ref);
+	    l.locate(image);
+	    for(MapLocator.Result r: l.results) {
+		if(r.located) continue;
+		System.err.print(r);
+		System.err.println();
 	    }
+	    System.err.println(p.name + ": " + l.count("located") + " located, "
+		+ l.count("inferred") + " inferred from neighbors, "
+		+ (l.count("unresolved") + l.count("error")) + " dropped");
+	    // addresses are sort keys, so rebuild the set after moving
+	    p.maps = new TreeSet<Map>(l.relocate());
+	}
+	dump(opts.output, mp, image, opts.format, new ArrayList<Parser>(), "");
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+	MapDumpOptions opts = new MapDumpOptions();
+
+	try {
+	    opts.Parse(args);
+	} catch (ParseException e) { 
+	    System.err.println(e.getMessage());
+	    System.err.println(opts.Usage());
+	    return;
+	}
+
+	if(opts.batchDir!=null) {
+	    batch(opts);
+	    return;
+	}
+
+	if(opts.diff!=null) {
+	    diff(opts);
+	    return;
+	}
+
+	if(opts.locate!=null) {
+	    locate(opts);
+	    return;
+	}
+
+	Parser mp = new Parser(opts.input);
+	ArrayList<Parser> refs = new ArrayList<Parser>();
+	ByteBuffer imagebuf=null;
+	String refsHeader="";
+	for(String s: opts.refs) {
+	    refs.add(new Parser(s));
+	    refsHeader+=",\"" + s + "\"";
+	}
+	if(opts.image!=null) {
+	    MMapFile mmap = new MMapFile(opts.image, ByteOrder.LITTLE_ENDIAN);
+	    imagebuf = mmap.getByteBuffer();
 	}
-	if (opts.format==Map.FORMAT_XDF)
-	    opts.output.print("</XDFFORMAT>\n");
+	dump(opts.output, mp, imagebuf, opts.format, refs, refsHeader);
     }
 }
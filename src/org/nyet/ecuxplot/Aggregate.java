@@ -0,0 +1,186 @@
+package org.nyet.ecuxplot;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.nyet.logfile.Dataset;
+import org.nyet.logfile.LogSource;
+
+// Per x bin (normally RPM) statistics of a column over the filtered ranges
+// of many logs. Each log is loaded, binned and dropped, so only a handful
+// of logs are ever in memory no matter how many are aggregated.
+public class Aggregate {
+    public static final double[] PERCENTILES = {10, 50, 90};
+    public static final String[] STATS = {"mean", "min", "max", "p10", "p50", "p90"};
+    // samples kept per bin for percentiles
+    private static final int RESERVOIR = 256;
+
+    private class Bin {
+	public int count = 0;
+	public double sum = 0;
+	public double min = Double.POSITIVE_INFINITY;
+	public double max = Double.NEGATIVE_INFINITY;
+	private double[] sample = new double[RESERVOIR];
+
+	private int kept() { return Math.min(count, RESERVOIR); }
+
+	public void add(double v) {
+	    if(count<RESERVOIR) {
+		sample[count] = v;
+	    } else {
+		// reservoir sampling: every value has the same chance to stay
+		int j = random.nextInt(count+1);
+		if(j<RESERVOIR) sample[j] = v;
+	    }
+	    count++;
+	    sum += v;
+	    if(v<min) min=v;
+	    if(v>max) max=v;
+	}
+
+	// keep each side's samples in proportion to its count
+	public void merge(Bin b) {
+	    int total = count+b.count;
+	    if(total<=RESERVOIR) {
+		System.arraycopy(b.sample, 0, sample, count, b.count);
+	    } else {
+		double[] s = new double[RESERVOIR];
+		int ka = kept(), kb = b.kept();
+		for(int i=0;i<RESERVOIR;i++) {
+		    if(random.nextInt(total)<count)
+			s[i] = sample[random.nextInt(ka)];
+		    else
+			s[i] = b.sample[random.nextInt(kb)];
+		}
+		sample = s;
+	    }
+	    count = total;
+	    sum += b.sum;
+	    min = Math.min(min, b.min);
+	    max = Math.max(max, b.max);
+	}
+
+	public double mean() { return sum/count; }
+
+	public double percentile(double p) {
+	    double[] s = Arrays.copyOf(sample, kept());
+	    Arrays.sort(s);
+	    int i = (int)Math.round(p/100*(s.length-1));
+	    return s[i];
+	}
+
+	public double stat(int which) {
+	    switch(which) {
+		case 0: return mean();
+		case 1: return min;
+		case 2: return max;
+		default: return percentile(PERCENTILES[which-3]);
+	    }
+	}
+    }
+
+    public final Comparable<?> xkey;
+    public final Comparable<?> ykey;
+    public final double binWidth;
+    public int files = 0;
+    public int ranges = 0;
+    private TreeMap<Long, Bin> bins = new TreeMap<Long, Bin>();
+    private Random random = new Random(0);
+
+    public Aggregate(Comparable<?> xkey, Comparable<?> ykey, double binWidth) {
+	this.xkey = xkey;
+	this.ykey = ykey;
+	this.binWidth = binWidth;
+    }
+
+    public void add(ECUxDataset data) {
+	if(!data.exists(this.ykey)) return;
+	this.files++;
+	for(Dataset.Range r : data.getRanges()) {
+	    double[] x = data.getData(this.xkey, r);
+	    double[] y = data.getData(this.ykey, r);
+	    if(x==null || y==null) continue;
+	    this.ranges++;
+	    for(int i=0;i<x.length && i<y.length;i++) {
+		if(Double.isNaN(y[i]) || Double.isInfinite(y[i])) continue;
+		// (round() makes NaN bin 0)
+		if(Double.isNaN(x[i]) || Double.isInfinite(x[i])) continue;
+		long b = Math.round(x[i]/this.binWidth);
+		Bin bin = this.bins.get(b);
+		if(bin==null) {
+		    bin = new Bin();
+		    this.bins.put(b, bin);
+		}
+		bin.add(y[i]);
+	    }
+	}
+    }
+
+    public void merge(Aggregate a) {
+	this.files += a.files;
+	this.ranges += a.ranges;
+	for(Map.Entry<Long, Bin> e : a.bins.entrySet()) {
+	    Bin bin = this.bins.get(e.getKey());
+	    if(bin==null) this.bins.put(e.getKey(), e.getValue());
+	    else bin.merge(e.getValue());
+	}
+    }
+
+    // { bin centers, values } for one of STATS
+    public double[][] series(int which) {
+	double[][] out = new double[2][this.bins.size()];
+	int i=0;
+	for(Map.Entry<Long, Bin> e : this.bins.entrySet()) {
+	    out[0][i] = e.getKey()*this.binWidth;
+	    out[1][i] = e.getValue().stat(which);
+	    i++;
+	}
+	return out;
+    }
+
+    // aggregate every ykey over all files, one pass per file. files are
+    // loaded by a small pool, and each is thrown away once it is binned.
+    public static Aggregate[] run(List<File> files, final Comparable<?> xkey,
+	final Comparable<?>[] ykeys, final double binWidth,
+	final Env env, final Filter filter, int verbose) throws Exception {
+	final Aggregate[] out = new Aggregate[ykeys.length];
+	for(int i=0;i<ykeys.length;i++)
+	    out[i] = new Aggregate(xkey, ykeys[i], binWidth);
+
+	// zips count as all the logs in them
+	ArrayList<LogSource> logs = new ArrayList<LogSource>();
+	for(File f : files) logs.addAll(LogSource.list(f));
+
+	final int threads = Math.max(1, Math.min(logs.size(),
+	    Runtime.getRuntime().availableProcessors()));
+	final int v = verbose;
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    ArrayList<Future<Aggregate[]>> futures =
+		new ArrayList<Future<Aggregate[]>>();
+	    for(final LogSource src : logs) {
+		futures.add(pool.submit(new Callable<Aggregate[]>() {
+		    public Aggregate[] call() throws Exception {
+			ECUxDataset data = new ECUxDataset(src, env, filter,
+			    v);
+			Aggregate[] a = new Aggregate[ykeys.length];
+			for(int i=0;i<ykeys.length;i++) {
+			    a[i] = new Aggregate(xkey, ykeys[i], binWidth);
+			    a[i].add(data);
+			}
+			return a;
+		    }
+		}));
+	    }
+	    // merge in submit order, so results don't depend on timing
+	    for(Future<Aggregate[]> f : futures) {
+		Aggregate[] a = f.get();
+		for(int i=0;i<a.length;i++) out[i].merge(a[i]);
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+	return out;
+    }
+}
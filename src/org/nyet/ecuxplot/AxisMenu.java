@@ -1,20 +1,29 @@
 package org.nyet.ecuxplot;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JCheckBox;
 import javax.swing.JSeparator;
 import javax.swing.JRadioButtonMenuItem;
-import javax.swing.JComponent;
+import javax.swing.JTextField;
 import javax.swing.AbstractButton;
 import javax.swing.ButtonGroup;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.MenuEvent;
 
 import org.nyet.util.MenuListener;
 import org.nyet.util.SubActionListener;
@@ -26,58 +35,139 @@ public class AxisMenu extends JMenu {
      * 
      */
     private static final long serialVersionUID = 1L;
+
+    // The ids (headers and formulas of every file) the axis menus are
+    // made from, sorted, shared by all of them. Menus fill themselves in
+    // from it when they are opened, if it changed since the last time.
+    public static class Model {
+	private TreeMap<String, DatasetId> ids = new TreeMap<String, DatasetId>();
+	private int version = 0;
+
+	// true if that changed anything
+	public boolean set(Collection<DatasetId> ids) {
+	    boolean changed = ids.size()!=this.ids.size();
+	    TreeMap<String, DatasetId> next = new TreeMap<String, DatasetId>();
+	    for(DatasetId id : ids) {
+		if(id==null) continue;
+		DatasetId old = this.ids.get(id.id);
+		if(old==null || !same(old.id2, id.id2)) changed = true;
+		next.put(id.id, id);
+	    }
+	    if(!changed) return false;
+	    this.ids = next;
+	    this.version++;
+	    return true;
+	}
+
+	private static boolean same(String a, String b) {
+	    return a==null?b==null:a.equals(b);
+	}
+
+	public int version() { return this.version; }
+	public Collection<DatasetId> ids() { return this.ids.values(); }
+    }
+
+    // an item not made yet
+    private static class Entry {
+	String id, tip;
+	Entry(String id, String tip) { this.id = id; this.tip = tip; }
+    }
+
     private SubActionListener listener;
     private boolean radioButton;
-    private Comparable<?>[] initialChecked;
 
+    // shared by a menu and all its submenus
+    private AxisMenu root;
+    private Model model;
+    private int built = -1;	// model version the items are from
+    private HashSet<String> checked = new HashSet<String>();
+    private TreeMap<String, String> known = new TreeMap<String, String>();
     private HashMap<String, AbstractButton> members =
 	new HashMap<String, AbstractButton>();
+    private ButtonGroup bg = null;
 
-    private HashMap<String, JMenu> subMenus =
-	new HashMap<String, JMenu>();
+    private HashMap<String, AxisMenu> subMenus =
+	new HashMap<String, AxisMenu>();
+    // what goes in this (sub)menu when it is opened: Entries, separators
+    private ArrayList<Object> pending = new ArrayList<Object>();
+
+    // type to filter (top level only)
+    private static final int MAX_RESULTS = 40;
+    private JTextField search = null;
+    private ArrayList<Component> results = new ArrayList<Component>();
+    private int top = 0;	// components before the items: search etc
 
     private int count=0;
     private int maxItems=18;
     private AxisMenu more=null;
     private AxisMenu parent=null;
 
-    private void addToSubmenu(String id, JComponent item, boolean autoadd) {
-	JMenu sub = this.subMenus.get(id);
+    private void addToSubmenu(String id, Object item, boolean autoadd) {
+	AxisMenu sub = this.subMenus.get(id);
 	if(sub==null) {
 	    sub = new AxisMenu(id + "...", this);
 	    this.subMenus.put(id, sub);
 	    if(autoadd) this.add(sub);
 	}
-	sub.add(item);
+	sub.pending.add(item);
     }
 
-    private void addToSubmenu(String id, JComponent item) {
+    private void addToSubmenu(String id, Object item) {
 	// autoadd if not Calc, which is added last
 	addToSubmenu(id, item, id.equals("Calc")?false:true);
     }
 
-    private AbstractButton makeMenuItem(String id, String tip,
-	SubActionListener listener, ButtonGroup bg) {
-	boolean checked = false;
-
-	for(int i=0;i<initialChecked.length;i++) {
-	    if(id.equals(initialChecked[i])) {
-		checked = true;
-		break;
-	    }
-	}
+    private AbstractButton makeMenuItem(Entry e) {
+	final AxisMenu r = this.root;
+	final String id = e.id;
+	boolean checked = r.checked.contains(id);
 
-	AbstractButton item = (bg==null)?new JCheckBox(id, checked):
+	final AbstractButton item = (r.bg==null)?new JCheckBox(id, checked):
 	    new JRadioButtonMenuItem(id, checked);
 
-	if(tip!=null) item.setToolTipText(tip);
+	if(e.tip!=null) item.setToolTipText(e.tip);
+
+	// keep track before the chart hears about it
+	item.addActionListener(new ActionListener() {
+	    public void actionPerformed(ActionEvent event) {
+		r.check(id, item.isSelected());
+	    }
+	});
+	item.addActionListener(new MenuListener(r.listener, r.getText()));
 
-	item.addActionListener(new MenuListener(listener,this.getText()));
-	if(bg!=null) bg.add(item);
+	return item;
+    }
 
+    // the item for e, as the one for its id
+    private AbstractButton make(Entry e) {
+	AbstractButton item = makeMenuItem(e);
+	if(this.root.bg!=null) {
+	    // adding a selected button to a group that has one deselects it
+	    this.root.bg.add(item);
+	    item.setSelected(this.root.checked.contains(e.id));
+	}
+	this.root.members.put(e.id, item);
 	return item;
     }
 
+    private void check(String id, boolean on) {
+	if(this.radioButton) {
+	    this.checked.clear();
+	    // a group ignores setSelected(false)
+	    if(this.bg!=null) this.bg.clearSelection();
+	}
+	if(on) this.checked.add(id);
+	else this.checked.remove(id);
+	AbstractButton item = this.members.get(id);
+	if(item!=null && item.isSelected()!=on) item.setSelected(on);
+	// search results aren't in the button group
+	for(Component c : this.results) {
+	    if(!(c instanceof AbstractButton) || !c.isEnabled()) continue;
+	    AbstractButton r = (AbstractButton)c;
+	    r.setSelected(this.checked.contains(r.getText()));
+	}
+    }
+
     private void add(String id, SubActionListener listener,
 	ButtonGroup bg, int where) {
 	this.add(id, null, listener, bg, where);
@@ -85,8 +175,9 @@ public class AxisMenu extends JMenu {
 
     private void add(String id, String tip, SubActionListener listener,
 	ButtonGroup bg, int where) {
-	AbstractButton item = makeMenuItem(id, tip, listener, bg);
-	this.add(item, where);
+	if (this.known.containsKey(id)) return;
+	this.known.put(id, tip);
+	this.add(make(new Entry(id, tip)), this.top+where);
     }
 
     private void add(String id, SubActionListener listener,
@@ -97,12 +188,15 @@ public class AxisMenu extends JMenu {
     private void add(String id, String tip, SubActionListener listener,
 	ButtonGroup bg) {
 
-	if (this.members.containsKey(id)) return;
+	if (this.known.containsKey(id)) return;
+	this.known.put(id, tip);
 
-	AbstractButton item = makeMenuItem(id, tip, listener, bg);
+	Entry item = new Entry(id, tip);
 
-	if(id.matches("RPM")) {
-	    this.add(item, 0);	// always add rpms first!
+	if(tip!=null && tip.startsWith("= ")) {	// user formula
+	    addToSubmenu("Formula", item);
+	} else if(id.matches("RPM")) {
+	    this.add(make(item), this.top);	// always add rpms first!
 	    this.add("RPM - raw", listener, bg, 1);
 
 	    this.add("Calc Velocity", listener, bg);
@@ -204,8 +298,8 @@ public class AxisMenu extends JMenu {
 	    if(id.matches("IgnitionTimingAngleOverall")) {
 		this.add("IgnitionTimingAngleOverallDesired", listener, bg);
 	    }
-	    AbstractButton titem = makeMenuItem(id + " (ms)", tip, listener, bg);
-	    addToSubmenu("TrueTiming", titem, true);
+	    this.known.put(id + " (ms)", tip);
+	    addToSubmenu("TrueTiming", new Entry(id + " (ms)", tip), true);
 	} else if(id.matches("(Cat|MainCat).*")) {
 	    addToSubmenu("Cats", item);
 	} else if(id.matches(".*EGT.*")) {
@@ -219,7 +313,7 @@ public class AxisMenu extends JMenu {
 	} else if(id.matches(".*(OXS|O2|ResistanceSensor).*")) {
 	    addToSubmenu("O2 Sensor(s)", item);
 	} else if(id.matches("Engine torque")) {
-	    this.add(item);
+	    this.add(make(item));
 	    this.add("Engine torque (ft-lb)", listener, bg);
 	    this.add("Engine HP", listener, bg);
 	} else if(id.matches("IntakeAirTemperature")) {
@@ -237,84 +331,158 @@ public class AxisMenu extends JMenu {
 	} else if(id.matches("^ME7L.*")) {
 	    addToSubmenu("ME7 Logger", item);
 	} else {
-	    this.add(item);
+	    this.add(make(item));
 	}
-
-	this.members.put(id, item);
     }
 
     // constructors
-    public AxisMenu(String text, DatasetId[] ids, SubActionListener listener,
+    public AxisMenu(String text, Model model, SubActionListener listener,
 	boolean radioButton, Comparable<?>[] initialChecked) {
-	this(text, ids, listener, radioButton, initialChecked, -1);
+	this(text, model, listener, radioButton, initialChecked, -1);
     }
-    public AxisMenu(String text, DatasetId[] ids, SubActionListener listener,
+    public AxisMenu(String text, Model model, SubActionListener listener,
 	boolean radioButton, Comparable<?>[] initialChecked, int maxItems) {
 
 	super(text);
 
+	this.root = this;
+	this.model = model;
 	this.listener = listener;
 	this.radioButton = radioButton;
-	this.initialChecked = initialChecked;
 	if (maxItems>0) this.maxItems = maxItems;
+	this.setOnlySelected(initialChecked);
+	this.listen();
+    }
 
-	if (ids!=null) {
-	    /* top level menu (before "more...") */
-	    ButtonGroup bg = null;
-	    if(radioButton) {
-		bg = new ButtonGroup();
-		this.add("Sample", listener, bg);
-		this.add(new JSeparator());
-	    }
+    public AxisMenu(String text, Model model, SubActionListener listener,
+	boolean radioButton, Comparable<?> initialChecked) {
+	this(text, model, listener, radioButton,
+	    new Comparable [] {initialChecked});
+    }
 
-	    for(int i=0;i<ids.length;i++) {
-		if(ids[i] == null) continue;
-		if(ids[i].id.length()>0 && !this.members.containsKey(ids[i].id)) {
-		    this.add(ids[i].id, ids[i].id2, listener, bg);
-		}
-	    }
+    public AxisMenu(String id, AxisMenu parent) {
+	super(id + "...");
+	this.root = parent.root;
+	this.listener = parent.listener;
+	this.radioButton = parent.radioButton;
+	this.maxItems = parent.maxItems;
+	this.parent = parent;
+	this.listen();
+    }
+    // end constructors
 
-	    // put ME7Log next
-	    JMenu me7l=subMenus.get("ME7 Logger");
-	    if(me7l!=null) {
-		super.add(new JSeparator());
-		super.add(me7l);
-	    }
+    // fill in on the way open
+    private void listen() {
+	this.addMenuListener(new javax.swing.event.MenuListener() {
+	    public void menuSelected(MenuEvent e) { open(); }
+	    public void menuDeselected(MenuEvent e) {}
+	    public void menuCanceled(MenuEvent e) {}
+	});
+    }
 
-	    // put calc next
-	    JMenu calc=subMenus.get("Calc");
-	    if(calc!=null) {
-		super.add(new JSeparator());
-		super.add(calc);
-	    }
+    private void open() {
+	if(this.model!=null) {
+	    if(this.built!=this.model.version()) build();
+	    return;
+	}
+	if(this.pending.isEmpty()) return;
+	ArrayList<Object> items = this.pending;
+	this.pending = new ArrayList<Object>();
+	for(Object o : items) {
+	    if(o instanceof Entry) this.add(make((Entry)o));
+	    else this.add((Component)o);
+	}
+    }
 
-	    // put More.. next
-	    if(this.more!=null) {
-		super.add(new JSeparator());
-		super.add(this.more);
-	    }
+    // (re)make the top level from the model: sorts every id into a
+    // submenu, but only makes the items that show at the top
+    private void build() {
+	this.removeAll();
+	this.known.clear();
+	this.members.clear();
+	this.subMenus.clear();
+	this.results.clear();
+	this.pending.clear();
+	this.count = 0;
+	this.more = null;
+	this.bg = this.radioButton?new ButtonGroup():null;
+
+	this.search = new JTextField(15);
+	this.search.setToolTipText("Type to find a channel");
+	this.search.getDocument().addDocumentListener(new DocumentListener() {
+	    public void insertUpdate(DocumentEvent e) { filter(); }
+	    public void removeUpdate(DocumentEvent e) { filter(); }
+	    public void changedUpdate(DocumentEvent e) { filter(); }
+	});
+	super.add(this.search);
+	super.add(new JSeparator());
+	this.top = 2;
+
+	/* top level menu (before "more...") */
+	if(this.radioButton) {
+	    this.add("Sample", this.listener, this.bg);
+	    this.add(new JSeparator());
+	}
+
+	for(DatasetId id : this.model.ids()) {
+	    if(id.id.length()>0 && !this.known.containsKey(id.id))
+		this.add(id.id, id.id2, this.listener, this.bg);
+	}
+
+	// put ME7Log next
+	JMenu me7l=subMenus.get("ME7 Logger");
+	if(me7l!=null) {
+	    super.add(new JSeparator());
+	    super.add(me7l);
+	}
+
+	// put calc next
+	JMenu calc=subMenus.get("Calc");
+	if(calc!=null) {
+	    super.add(new JSeparator());
+	    super.add(calc);
+	}
+
+	// put More.. next
+	if(this.more!=null) {
+	    super.add(new JSeparator());
+	    super.add(this.more);
 	}
 
 	// add "Remove all" to top level menu
-	if(ids!=null && !radioButton) {
+	if(!this.radioButton) {
 	    super.add(new JSeparator());
 	    JMenuItem item=new JMenuItem("Remove all");
 	    super.add(item);
 	    item.addActionListener(new MenuListener(listener,this.getText()));
 	}
-    }
 
-    public AxisMenu(String text, DatasetId[] ids, SubActionListener listener,
-	boolean radioButton, Comparable<?> initialChecked) {
-	this(text, ids, listener, radioButton,
-	    new Comparable [] {initialChecked});
+	this.built = this.model.version();
     }
 
-    public AxisMenu(String id, AxisMenu parent) {
-	this(id + "...", null, parent.listener, parent.radioButton, parent.initialChecked, parent.maxItems);
-	this.parent = parent;
+    // items matching the search text, right under it
+    private void filter() {
+	for(Component c : this.results) this.remove(c);
+	this.results.clear();
+	String q = this.search.getText().trim().toLowerCase();
+	if(q.length()>0) {
+	    int at = 1;
+	    for(Map.Entry<String, String> e : this.known.entrySet()) {
+		if(!e.getKey().toLowerCase().contains(q)) continue;
+		if(this.results.size()==MAX_RESULTS) {
+		    JMenuItem c = new JMenuItem("...");
+		    c.setEnabled(false);
+		    this.results.add(super.add(c, at++));
+		    break;
+		}
+		this.results.add(super.add(makeMenuItem(
+		    new Entry(e.getKey(), e.getValue())), at++));
+	    }
+	}
+	this.top = 2 + this.results.size();
+	this.revalidate();
+	if(this.isPopupMenuVisible()) this.getPopupMenu().pack();
     }
-    // end constructors
 
     public Component add(JMenu item) {return add(item, false);}
     public Component add(Component item) {return add(item, false);}
@@ -344,13 +512,14 @@ public class AxisMenu extends JMenu {
     }
 
     public void uncheckAll() {
+	this.checked.clear();
 	for(AbstractButton item : this.members.values())
 	    item.setSelected(false);
     }
 
     public void setSelected(Comparable<?> key) {
-	AbstractButton item = this.members.get(key);
-	if(item!=null) item.setSelected(true);
+	if(key==null) return;
+	this.check(key.toString(), true);
     }
 
     public void setSelected(Comparable<?>[] keys) {
@@ -364,9 +533,12 @@ public class AxisMenu extends JMenu {
     }
 
     public void setOnlySelected(Set<Comparable<?>> keys) {
+	this.checked.clear();
+	for(Comparable<?> k : keys) if(k!=null) this.checked.add(k.toString());
+	if(this.bg!=null) this.bg.clearSelection();
 	for(String ik : this.members.keySet()) {
 	    AbstractButton item = this.members.get(ik);
-	    item.setSelected(keys.contains(ik));
+	    item.setSelected(this.checked.contains(ik));
 	}
     }
 }
@@ -7,12 +7,14 @@ import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.event.RendererChangeEvent;
+import org.jfree.chart.renderer.AbstractRenderer;
 import org.jfree.chart.renderer.xy.*;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.data.xy.XYDataset;
-import org.jfree.data.xy.DefaultXYDataset;
 
 import org.nyet.logfile.Dataset;
+import org.nyet.util.Profiler;
 
 public class ECUxChartFactory {
     private static void addAxis(XYPlot plot, String label, XYDataset dataset,
@@ -28,11 +30,11 @@ public class ECUxChartFactory {
     private static JFreeChart create2AxisXYLineChart () {
 	final JFreeChart chart = ChartFactory.createXYLineChart(
 	    "", "", "",
-	    new DefaultXYDataset(), PlotOrientation.VERTICAL,
+	    new ECUxXYDataset(), PlotOrientation.VERTICAL,
 	    true, true, false);
 
 	final XYPlot plot = chart.getXYPlot();
-	addAxis(plot, "", new DefaultXYDataset(), 1, true, false);
+	addAxis(plot, "", new ECUxXYDataset(), 1, true, false);
 
 	return chart;
     }
@@ -40,11 +42,11 @@ public class ECUxChartFactory {
     private static JFreeChart create2AxisScatterPlot () {
 	final JFreeChart chart = ChartFactory.createScatterPlot(
 	    "", "", "",
-	    new DefaultXYDataset(), PlotOrientation.VERTICAL,
+	    new ECUxXYDataset(), PlotOrientation.VERTICAL,
 	    true, true, false);
 
 	final XYPlot plot = chart.getXYPlot();
-	addAxis(plot, "", new DefaultXYDataset(), 1, false, true);
+	addAxis(plot, "", new ECUxXYDataset(), 1, false, true);
 
 	return chart;
     }
@@ -80,10 +82,10 @@ public class ECUxChartFactory {
 
     // set all series of a given ykey different shades of a base paint
     public static void setAxisPaint(JFreeChart chart, int axis,
-	DefaultXYDataset d, Dataset.Key ykey, Integer[] series) {
+	ECUxXYDataset d, Dataset.Key ykey, Integer[] series) {
 
 	final XYPlot plot = chart.getXYPlot();
-	final XYItemRenderer renderer = plot.getRenderer(axis);
+	final AbstractRenderer renderer = (AbstractRenderer)plot.getRenderer(axis);
 
         final Color colors[][] = {
             {
@@ -103,28 +105,29 @@ public class ECUxChartFactory {
 	axis = axis%colors.length;
 
 	// find index of ykey in the ykeys list to get a unique base color
-	String[] list = getDatasetYkeys(d);
-        int yki;
-	for (yki=0;yki<list.length;yki++)
-	    if (list[yki].equals(ykey.getString())) break;
+	int yki = d.ykeyIndex(ykey.getString());
+	if (yki<0) yki = d.getYkeys().length;
 
 	Color color=colors[axis][yki%(colors[axis].length)];
 
 	// make a variety of dark/light colors based on yki
+	// (one change event for all of them, at the end)
 	int i;
 	Color c;
 	for(i=series.length/2, c=color; i>=0; i--, c=c.darker())
-	    renderer.setSeriesPaint(series[i], c);
+	    renderer.setSeriesPaint(series[i], c, false);
 
 	for(i=(series.length/2+1), c=color; i<series.length; i++, c=c.brighter())
-	    renderer.setSeriesPaint(series[i], c);
+	    renderer.setSeriesPaint(series[i], c, false);
+
+	renderer.notifyListeners(new RendererChangeEvent(renderer));
     }
 
     // set all series for a given filename to the same stroke
     public static void setAxisStroke(JFreeChart chart, int axis,
-	DefaultXYDataset d, Dataset.Key ykey, Integer[] series, int index) {
+	ECUxXYDataset d, Dataset.Key ykey, Integer[] series, int index) {
 	final XYPlot plot = chart.getXYPlot();
-	final XYItemRenderer renderer = plot.getRenderer(axis);
+	final AbstractRenderer renderer = (AbstractRenderer)plot.getRenderer(axis);
 
         final java.awt.Stroke strokes[] = {
 	    new java.awt.BasicStroke(1.0f),
@@ -143,17 +146,43 @@ public class ECUxChartFactory {
         };
 
 	for(int i=0; i<series.length; i++)
-	    renderer.setSeriesStroke(series[i], strokes[index%strokes.length]);
+	    renderer.setSeriesStroke(series[i], strokes[index%strokes.length],
+		false);
+	renderer.notifyListeners(new RendererChangeEvent(renderer));
     }
 
-    public static Integer[] addDataset(DefaultXYDataset d, ECUxDataset data,
+    public static Integer[] addDataset(ECUxXYDataset d, ECUxDataset data,
 		    Comparable<?> xkey, Dataset.Key ykey, Filter filter) {
+	return addDataset(d, data, xkey, ykey, filter, 0);
+    }
+
+    // resample>0: put each range on an rpm grid of that step, if x is RPM
+    public static Integer[] addDataset(ECUxXYDataset d, ECUxDataset data,
+		    Comparable<?> xkey, Dataset.Key ykey, Filter filter,
+		    double resample) {
+	Profiler.Timer t = Profiler.start("addDataset");
+	// one dataset change for all the ranges
+	d.setNotify(false);
+	try {
+	    return _addDataset(d, data, xkey, ykey, filter, resample);
+	} finally {
+	    d.setNotify(true);
+	    t.stop();
+	}
+    }
+
+    private static Integer[] _addDataset(ECUxXYDataset d,
+		    ECUxDataset data, Comparable<?> xkey, Dataset.Key ykey,
+		    Filter filter, double resample) {
 	ArrayList<Integer> ret = new ArrayList<Integer>();
 	ArrayList<Dataset.Range> ranges = data.getRanges();
 	// add empty data in case we turn off filter, or we get some error
 	double[][] empty = {{},{}};
-	if(ranges.size()==0) {
-	    filter.currentRange = 0;
+	boolean other = !filter.showAllRanges() && filter.currentFile!=null &&
+	    !filter.currentFile.equals(data.getFileId());
+	// (for another file, keep the ykey on the chart, but with no data)
+	if(ranges.size()==0 || other) {
+	    if(!other) filter.currentRange = 0;
 	    Dataset.Key key = data.new Key(ykey);
 	    key.hideRange();
 	    d.addSeries(key, empty);
@@ -172,58 +201,71 @@ public class ECUxChartFactory {
 	    if(ranges.size()==1) key.hideRange();
 	    else key.showRange();
 
-	    Dataset.Range r=ranges.get(i);
-	    try {
-		double [][] s = new double [][]{
-		    data.getData(xkey, r),
-		    data.getData(ykey, r)};
-		d.addSeries(key, s);
-		ret.add(d.indexOf(key));
-	    } catch (Exception e){
-		d.addSeries(key, empty);
-		ret.add(d.indexOf(key));
+	    double [][] s = null;
+	    Comparable<?> x = null;	// if s is straight from the log
+	    if(resample>0 && xkey.equals("RPM")) {
+		try {
+		    s = data.getResampledData(ykey.getString(), i, resample);
+		} catch (Exception e) {
+		    // e.g. interpolating outside the spline
+		}
+	    }
+	    // no spline for this range, or it failed? fall back to the
+	    // raw samples
+	    if(s==null) {
+		try {
+		    s = data.getSeries(xkey, ykey.getString(), i);
+		    x = xkey;
+		} catch (Exception e) {
+		}
+	    }
+	    if(s==null) {
+		s = empty;
+		x = null;
 	    }
+	    d.addSeries(key, s, x);
+	    ret.add(d.indexOf(key));
 	}
 	return ret.toArray(new Integer[0]);
     }
 
     // remove ALL series from the dataset
-    public static void removeDataset(DefaultXYDataset d) {
-	while(d.getSeriesCount()>0) {
-	    d.removeSeries(d.getSeriesKey(0));
-	}
+    public static void removeDataset(ECUxXYDataset d) {
+	d.removeAllSeries();
     }
 
     // remove ALL series that match the data column tag
-    public static void removeDataset(DefaultXYDataset d, Comparable<?> ykey) {
+    public static void removeDataset(ECUxXYDataset d, Comparable<?> ykey) {
 	if(ykey instanceof Dataset.Key) {
 	    // pull out ONLY the data column tag, and ykey is now a String.
 	    ykey = ((Dataset.Key)ykey).getString();
 	}
-	// ykey is now a string, so we have to walk series ourselves
-	// and call "equals" for String, which only compares the data tag
-	for(int i=0;i<d.getSeriesCount();i++) {
-	    // When we delete things, the next key falls into our
-	    // position, so stay there and clean.
-	    while(i<d.getSeriesCount() && d.getSeriesKey(i).equals(ykey)) {
-		d.removeSeries(d.getSeriesKey(i));
-	    }
-	}
+	d.removeYkey(ykey.toString());
     }
 
-    public static String [] getDatasetYkeys(DefaultXYDataset d) {
-	ArrayList<String> ret = new ArrayList<String>();
-	for(int i=0;i<d.getSeriesCount();i++) {
-	    Comparable<?> key = d.getSeriesKey(i);
-	    String s;
-	    if(key instanceof Dataset.Key)
-		s=((Dataset.Key)key).getString();
-	    else
-		s=key.toString();
+    public static String [] getDatasetYkeys(ECUxXYDataset d) {
+	return d.getYkeys();
+    }
 
-	    if (!ret.contains(s)) ret.add(s);
-	}
-	return ret.toArray(new String[0]);
+    // one series per statistic, keyed "ykey stat"
+    public static void addAggregate(ECUxXYDataset d, Aggregate a) {
+	for(int i=0;i<Aggregate.STATS.length;i++)
+	    d.addSeries(a.ykey + " " + Aggregate.STATS[i], a.series(i));
+    }
+
+    public static JFreeChart createAggregateChart (Aggregate[] a) {
+	final ECUxXYDataset d = new ECUxXYDataset();
+	for(Aggregate agg : a) addAggregate(d, agg);
+	String title = "";
+	if(a.length>0)
+	    title = a[0].files + " files, " + a[0].ranges + " ranges";
+	final JFreeChart chart = ChartFactory.createXYLineChart(
+	    title, a.length>0?a[0].xkey.toString():"", "",
+	    d, PlotOrientation.VERTICAL,
+	    true, true, false);
+	((NumberAxis) chart.getXYPlot().getRangeAxis()).
+	    setAutoRangeIncludesZero(false);
+	return chart;
     }
 
     public static JFreeChart createFATSChart (FATSDataset dataset) {
@@ -1,24 +1,251 @@
 package org.nyet.ecuxplot;
 
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.awt.event.MouseEvent;
+import java.text.NumberFormat;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
 
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.ChartPanel;
+import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.LegendItemSource;
+import org.jfree.chart.event.ChartChangeEvent;
+import org.jfree.chart.plot.PlotRenderingInfo;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.title.LegendTitle;
+import org.jfree.data.xy.XYDataset;
+import org.jfree.util.PublicCloneable;
 import org.jfree.ui.ExtensionFileFilter;
 
+import org.nyet.logfile.Dataset;
+import org.nyet.util.Profiler;
+
 public class ECUxChartPanel extends ChartPanel {
     /**
      * 
      */
     private static final long serialVersionUID = 1L;
 
+    // one thread renders for every panel, so renders never pile up
+    private static final ExecutorService renderer =
+	Executors.newSingleThreadExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "chart renderer");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+
+    // Background rendering: a copy of the chart is drawn into an image off
+    // the EDT and paintComponent() just copies the last good image, stretched
+    // if the panel was resized, until the next one is done. ChartPanel's
+    // own buffer is off, so it draws zoom rectangles and axis traces
+    // straight onto the screen, and mouse movement never redraws data.
+    private final boolean background;
+    private int generation = 0;		// chart changes seen
+    private BufferedImage image = null;	// last good render
+    private int imageGeneration = -1;
+    private int failedGeneration = -1;
+    private boolean rendering = false;
+
+    // Tooltips come from a PointIndex of what is shown rather than from
+    // an entity per data point, which big scatter plots can't afford.
+    private static final double TOOLTIP_RADIUS = 8;	// pixels
+    private PointIndex index = null;
+    private int indexGeneration = -1;
+    private Map<String, ECUxDataset> datasets = null;	// by file name
+
     public ECUxChartPanel(JFreeChart chart) {
-	super(chart);
+	this(chart, false);
+    }
+
+    public ECUxChartPanel(JFreeChart chart, boolean background) {
+	super(chart, !background);
+	this.background = background;
 	setMouseWheelEnabled(true);
 	setMouseZoomable(true);
+	if(getChartRenderingInfo()!=null)
+	    getChartRenderingInfo().setEntityCollection(null);
+    }
+
+    // the logs on the chart, to show the sample behind a point
+    public void setDatasets(Map<String, ECUxDataset> datasets) {
+	this.datasets = datasets;
+    }
+
+    private PointIndex index() {
+	if(getChart()==null || getChartRenderingInfo()==null) return null;
+	java.awt.geom.Rectangle2D area =
+	    getChartRenderingInfo().getPlotInfo().getDataArea();
+	if(area==null || area.isEmpty()) return null;
+	if(this.index==null || this.indexGeneration!=this.generation ||
+	    !this.index.covers(area)) {
+	    Profiler.Timer t = Profiler.start("PointIndex");
+	    this.index = new PointIndex(getChart().getXYPlot(), area);
+	    this.indexGeneration = this.generation;
+	    t.stop();
+	}
+	return this.index;
+    }
+
+    // sample number of item of a series, if the series is straight from
+    // the log (not resampled); -1 if it can't be found
+    private int sample(XYDataset ds, int series, int item) {
+	if(this.datasets==null || !(ds instanceof ECUxXYDataset)) return -1;
+	Comparable<?> xkey = ((ECUxXYDataset)ds).getXkey(series);
+	Comparable<?> k = ds.getSeriesKey(series);
+	if(xkey==null || !(k instanceof Dataset.Key)) return -1;
+	Dataset.Key key = (Dataset.Key)k;
+	ECUxDataset data = this.datasets.get(key.getFilename());
+	if(data==null) return -1;
+	return data.row(xkey, key.getString(), key.getRange(), item);
+    }
+
+    public String getToolTipText(MouseEvent e) {
+	PointIndex idx = index();
+	if(idx==null) return null;
+	Point2D p = translateScreenToJava2D(e.getPoint());
+	PointIndex.Hit hit = idx.nearest(p.getX(), p.getY(), TOOLTIP_RADIUS);
+	if(hit==null) return null;
+	XYPlot plot = getChart().getXYPlot();
+	XYDataset ds = plot.getDataset(hit.dataset);
+	Comparable<?> key = ds.getSeriesKey(hit.series);
+	double x = ds.getXValue(hit.series, hit.item);
+	double y = ds.getYValue(hit.series, hit.item);
+	NumberFormat nf = NumberFormat.getNumberInstance();
+	nf.setMaximumFractionDigits(6);
+	String out = key + ": (" + nf.format(x) + ", " + nf.format(y) + ")";
+	int i = sample(ds, hit.series, hit.item);
+	if(i>=0) out += " sample " + i;
+	return out;
+    }
+
+    public boolean isBackgroundRendering() { return this.background; }
+
+    public void chartChanged(ChartChangeEvent event) {
+	this.generation++;
+	super.chartChanged(event);
+    }
+
+    public void paintComponent(Graphics g) {
+	Profiler.Timer t = Profiler.start("paint");
+	if(!this.background) {
+	    super.paintComponent(g);
+	    t.stop();
+	    return;
+	}
+	g.setColor(getBackground());
+	g.fillRect(0, 0, getWidth(), getHeight());
+	Insets in = getInsets();
+	int w = getWidth()-in.left-in.right;
+	int h = getHeight()-in.top-in.bottom;
+	if(getChart()!=null && w>0 && h>0) {
+	    boolean sized = this.image!=null && this.image.getWidth()==w &&
+		this.image.getHeight()==h;
+	    if(!this.rendering && (!sized ||
+		this.imageGeneration!=this.generation) &&
+		this.failedGeneration!=this.generation)
+		render(w, h);
+	    if(this.image!=null)
+		g.drawImage(this.image, in.left, in.top, w, h, null);
+	}
+	t.stop();
+    }
+
+    // A copy of chart the renderer can have to itself while the EDT goes
+    // on changing the real one: plot, axes and renderers are cloned by
+    // JFreeChart, the datasets (which it shares) and the legend's source
+    // (which it leaves on the real plot) here. The data arrays themselves
+    // are never changed once added, so the copies can share them.
+    private static JFreeChart copy(JFreeChart chart)
+	throws CloneNotSupportedException {
+	JFreeChart c = (JFreeChart)chart.clone();
+	XYPlot from = chart.getXYPlot(), to = c.getXYPlot();
+	for(int i=0;i<from.getDatasetCount();i++) {
+	    XYDataset d = from.getDataset(i);
+	    if(d instanceof PublicCloneable)
+		to.setDataset(i, (XYDataset)((PublicCloneable)d).clone());
+	}
+	LegendTitle legend = c.getLegend();
+	if(legend!=null) legend.setSources(new LegendItemSource[] {to});
+	return c;
+    }
+
+    private void render(final int w, final int h) {
+	final JFreeChart chart;
+	try {
+	    chart = copy(getChart());
+	} catch (CloneNotSupportedException e) {
+	    this.failedGeneration = this.generation;
+	    return;
+	}
+	final Point2D anchor = getAnchor();
+	final int gen = this.generation;
+	this.rendering = true;
+	renderer.submit(new Runnable() {
+	    public void run() {
+		Profiler.Timer t = Profiler.start("render");
+		BufferedImage img = new BufferedImage(w, h,
+		    BufferedImage.TYPE_INT_RGB);
+		// no entities, see PointIndex
+		ChartRenderingInfo info = new ChartRenderingInfo(null);
+		Graphics2D g2 = img.createGraphics();
+		try {
+		    chart.draw(g2, new Rectangle2D.Double(0, 0, w, h), anchor,
+			info);
+		} catch (RuntimeException e) {
+		    // don't keep a broken image as the last good one
+		    img = null;
+		} finally {
+		    g2.dispose();
+		    t.stop();
+		}
+		final BufferedImage out = img;
+		final ChartRenderingInfo outInfo = info;
+		SwingUtilities.invokeLater(new Runnable() {
+		    public void run() { rendered(out, outInfo, gen); }
+		});
+	    }
+	});
+    }
+
+    // on the EDT
+    private void rendered(BufferedImage img, ChartRenderingInfo info, int gen) {
+	this.rendering = false;
+	if(img==null) {
+	    this.failedGeneration = gen;
+	} else {
+	    this.image = img;
+	    this.imageGeneration = gen;
+	    // tooltips, zooming and panning map the mouse through this
+	    ChartRenderingInfo mine = getChartRenderingInfo();
+	    if(mine!=null) {
+		mine.clear();
+		mine.setChartArea(info.getChartArea());
+		mine.setEntityCollection(info.getEntityCollection());
+		PlotRenderingInfo p = mine.getPlotInfo();
+		PlotRenderingInfo q = info.getPlotInfo();
+		p.setPlotArea(q.getPlotArea());
+		p.setDataArea(q.getDataArea());
+		for(int i=0;i<q.getSubplotCount();i++)
+		    p.addSubplotInfo(q.getSubplotInfo(i));
+	    }
+	}
+	// shows it, or starts the next render if something changed meanwhile
+	repaint();
     }
 
     public void doSaveAs(String fname) throws IOException {
@@ -1,7 +1,11 @@
 package org.nyet.ecuxplot;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -11,25 +15,297 @@ import au.com.bytecode.opencsv.CSVReader;
 import flanagan.interpolation.CubicSpline;
 
 import org.nyet.logfile.Dataset;
+import org.nyet.logfile.LogSource;
 import org.nyet.util.DoubleArray;
 import org.nyet.util.Files;
+import org.nyet.util.Profiler;
 
 public class ECUxDataset extends Dataset {
     private Column rpm, pedal, throttle, gear, zboost;
     private Env env;
     private Filter filter;
+    // env and filter settings for this pass, see buildRanges()
+    private Env.Snapshot es;
+    private Filter.Snapshot fs;
     private final double hp_per_watt = 0.00134102209;
     private final double mbar_per_psi = 68.9475729;
     private double time_ticks_per_sec;	// ECUx has time in ms. Nobody else does.
     public double samples_per_sec=0;
     private CubicSpline [] splines;	// rpm vs time splines
+    // per range summary, built on first use after buildRanges()
+    private ArrayList<RangeStats> rangeStats = null;
+    // "xkey\nykey" -> per range {x, y}, cut from one fetch of each column
+    private HashMap<String, double[][][]> seriesCache =
+	new HashMap<String, double[][][]>();
+    // every column looked up, raw or calculated, while env etc are the
+    // same; see buildRanges()
+    private ConcurrentHashMap<String, Column> columnCache =
+	new ConcurrentHashMap<String, Column>();
+    private String columnsKey = null;	// what columnCache was built with
+    // columns prefetch() failed to calculate, with the same lifetime as
+    // columnCache: get() throws the same again rather than retrying
+    private ConcurrentHashMap<String, RuntimeException> failed =
+	new ConcurrentHashMap<String, RuntimeException>();
+    private int verbose;
+
+    // What each calculated column in _get() fetches with this.get(), i.e.
+    // the edges of the calc graph, from NEEDS below. prefetch() uses it to
+    // schedule; a missing edge only costs parallelism, never correctness.
+    private String[] deps(String id) {
+	String[] needs = NEEDS.get(id);
+	if(needs!=null) {
+	    ArrayList<String> out = new ArrayList<String>();
+	    for(String n : needs) {
+		if(n.startsWith("=")) continue;	// read, not calculated
+		for(String alt : n.replaceFirst("^\\?", "").split("\\|"))
+		    out.add(alt);
+	    }
+	    return out.toArray(new String[0]);
+	}
+	Formula f = this.formula(id);
+	if(f!=null) return f.columns();
+	if(id.endsWith(" (ms)")) return timing(id);
+	return new String[0];
+    }
+
+    // Units of each calculated column in _get(), and the columns it uses:
+    // "a" if it can't do without a, "a|b" if either will do, "=a" for the
+    // file's own column where a is also calculated, "?a" if a is used when
+    // there is one. exists() and units() answer from these and the file
+    // header, without computing anything; prefetch() schedules by them.
+    private static final HashMap<String, String> UNITS =
+	new HashMap<String, String>();
+    private static final HashMap<String, String[]> NEEDS =
+	new HashMap<String, String[]>();
+    private static void calc(String id, String units, String... needs) {
+	UNITS.put(id, units);
+	NEEDS.put(id, needs);
+    }
+    static {
+	calc("Sample", "#");
+	calc("TIME", "s", "=TIME");
+	calc("RPM", "RPM", "=RPM");
+	calc("RPM - raw", "RPM", "=RPM");
+	calc("Calc Load", "%", "MassAirFlow", "RPM");
+	calc("Calc Load Corrected", "%", "Calc MAF", "RPM");
+	calc("MassAirFlow (kg/hr)", "kg/hr", "MassAirFlow");
+	calc("Calc MAF", "g/sec", "MassAirFlow");
+	calc("Calc MassAirFlow df/dt", "g/sec^s", "MassAirFlow", "TIME");
+	calc("Calc Turbo Flow", "m^3/sec", "Calc MAF");
+	calc("Calc Turbo Flow (lb/min)", "lb/min", "Calc MAF");
+	calc("Calc Fuel Mass", "g/sec", "EffInjectorDutyCycle",
+	    "?EffInjectorDutyCycleBank2");
+	calc("TargetAFRDriverRequest (AFR)", "AFR", "TargetAFRDriverRequest");
+	calc("AirFuelRatioDesired (AFR)", "AFR", "AirFuelRatioDesired");
+	calc("AirFuelRatioCurrent (AFR)", "AFR", "AirFuelRatioCurrent");
+	calc("Calc AFR", "AFR", "Calc MAF", "Calc Fuel Mass");
+	calc("Calc lambda", "lambda", "Calc AFR");
+	calc("Calc lambda error", "%", "AirFuelRatioDesired", "Calc lambda");
+	calc("FuelInjectorDutyCycle", "%", "FuelInjectorOnTime", "RPM");
+	calc("EffInjectorDutyCycle", "%", "EffInjectionTime", "RPM");
+	calc("EffInjectorDutyCycleBank2", "%", "EffInjectionTimeBank2", "RPM");
+	calc("Engine torque (ft-lb)", "ft-lb", "Engine torque");
+	calc("Engine HP", "HP", "Engine torque (ft-lb)", "RPM");
+	calc("Calc Velocity", "m/s", "RPM");
+	calc("Calc Acceleration (RPM/s)", "RPM/s", "RPM", "TIME");
+	calc("Calc Acceleration - raw (RPM/s)", "RPM/s", "RPM - raw", "TIME");
+	calc("Calc Acceleration (m/s^2)", "m/s^2", "Calc Velocity", "TIME");
+	calc("Calc Acceleration (g)", "g", "Calc Acceleration (m/s^2)");
+	calc("Calc WHP", "HP", "Calc Acceleration (m/s^2)", "Calc Velocity");
+	calc("Calc HP", "HP", "Calc WHP");
+	calc("Calc WTQ", "ft-lb", "Calc WHP", "RPM");
+	calc("Calc TQ", "ft-lb", "Calc HP", "RPM");
+	calc("IntakeAirTemperature", "\u00B0 F", "=IntakeAirTemperature");
+	calc("IntakeAirTemperature (C)", "\u00B0 C", "=IntakeAirTemperature");
+	calc("BoostPressureDesired (PSI)", "PSI", "BoostPressureDesired",
+	    "?BaroPressure");
+	calc("BoostPressureActual (PSI)", "PSI", "BoostPressureActual",
+	    "?BaroPressure");
+	calc("Zeitronix Boost (PSI)", "PSI", "=Zeitronix Boost");
+	calc("Zeitronix Boost", "mBar", "Zeitronix Boost (PSI)");
+	calc("Zeitronix AFR (lambda)", "lambda", "Zeitronix AFR");
+	calc("Zeitronix Lambda (AFR)", "AFR", "Zeitronix Lambda");
+	calc("Calc BoostDesired PR", "PR", "BoostPressureDesired");
+	calc("Calc BoostActual PR", "PR", "BoostPressureActual");
+	calc("Calc evtmod", "\u00B0 C", "IntakeAirTemperature (C)",
+	    "?CoolantTemperature");
+	calc("Calc ftbr", "", "IntakeAirTemperature (C)", "Calc evtmod");
+	calc("Calc SimBoostIATCorrection", "", "Calc ftbr");
+	calc("Calc SimBoostPressureDesired", "mBar",
+	    "EngineLoadRequested|EngineLoadCorrected",
+	    "ME7L ps_w|BoostPressureActual", "?Calc ftbr");
+	calc("Calc Boost Spool Rate (RPM)", "mBar/RPM",
+	    "BoostPressureActual", "RPM");
+	calc("Calc Boost Spool Rate Zeit (RPM)", "mBar/RPM",
+	    "Zeitronix Boost", "RPM");
+	calc("Calc Boost Spool Rate (time)", "PSI/sec",
+	    "BoostPressureActual (PSI)", "TIME");
+	calc("Calc LDR error", "100mBar",
+	    "BoostPressureDesired", "BoostPressureActual");
+	calc("Calc LDR de/dt", "100mBar",
+	    "BoostPressureDesired", "BoostPressureActual", "TIME");
+	calc("Calc LDR I e dt", "100mBar",
+	    "BoostPressureDesired", "BoostPressureActual", "TIME");
+	calc("Calc LDR PID", "%",
+	    "Calc LDR error", "Calc LDR I e dt", "Calc LDR de/dt");
+	calc("Calc pspvds", "", "ME7L ps_w", "BoostPressureActual");
+	calc("IgnitionTimingAngleOverallDesired", "\u00B0",
+	    "IgnitionTimingAngleOverall",
+	    "?IgnitionRetardCyl0", "?IgnitionRetardCyl1", "?IgnitionRetardCyl2",
+	    "?IgnitionRetardCyl3", "?IgnitionRetardCyl4", "?IgnitionRetardCyl5",
+	    "?IgnitionRetardCyl6", "?IgnitionRetardCyl7");
+	calc("Calc LoadSpecified correction", "K",
+	    "EngineLoadCorrected", "EngineLoadSpecified");
+    }
+
+    private static String name(Comparable<?> id) {
+	return (id instanceof Dataset.Key)?((Dataset.Key)id).getString():
+	    id.toString();
+    }
+
+    // a column as read from the file (or merged in), never calculated
+    private Column raw(String id) {
+	Column c = super.get(id);
+	if(c==null || c.data==null || c.data.size()==0) return null;
+	return c;
+    }
+
+    private boolean exists(String id, HashSet<String> visiting) {
+	if(this.columnCache!=null && this.columnCache.containsKey(id))
+	    return true;
+	if(id.startsWith("=")) return this.raw(id.substring(1))!=null;
+	// formulas can't loop, but don't hang if one does
+	if(!visiting.add(id)) return false;
+	try {
+	    String[] needs = NEEDS.get(id);
+	    if(needs!=null) return this.length()>0 && has(needs, visiting);
+	    // same order as the end of _get()
+	    if(id.endsWith(" (ms)") && has(timing(id), visiting)) return true;
+	    Formula f = this.formula(id);
+	    if(f!=null && has(f.columns(), visiting)) return true;
+	    return this.raw(id)!=null;
+	} finally {
+	    visiting.remove(id);
+	}
+    }
+
+    private boolean has(String[] needs, HashSet<String> visiting) {
+	for(String n : needs) {
+	    if(n.startsWith("?")) continue;
+	    boolean any = false;
+	    for(String alt : n.split("\\|"))
+		if(any = exists(alt, visiting)) break;
+	    if(!any) return false;
+	}
+	return true;
+    }
+
+    // Calc True Timing
+    private static String[] timing(String id) {
+	return new String[] {id.substring(0, id.length()-5), "RPM"};
+    }
+
+    private Formula formula(String id) {
+	// env is still null while the super constructor runs
+	return (this.env==null)?null:this.env.formulas.get(id);
+    }
+
+    // whether get(id) would find id, answered from the header and what
+    // each calculated column needs; nothing gets computed
+    public boolean exists(Comparable<?> id) {
+	return exists(name(id), new HashSet<String>());
+    }
+
+    // The raw column _get() passes id through as, unchanged (units and
+    // all), or null if it calculates id. units() goes by it too.
+    private String passThrough(String id) {
+	// smoothed only with enough samples to smooth
+	if(id.equals("RPM")) return (this.samples_per_sec>10)?null:"RPM";
+	if(id.equals("IntakeAirTemperature") ||
+	    id.equals("IntakeAirTemperature (C)")) {
+	    // converted only if it was logged in the other units
+	    Column t = super.get("IntakeAirTemperature");
+	    if(t==null) return null;
+	    String other = id.endsWith("(C)")?".*F$":".*C$";
+	    if(!t.getUnits().matches(other)) return "IntakeAirTemperature";
+	}
+	return null;
+    }
+
+    // units _get() gives calculated column id: UNITS, and SAE corrected
+    // power and torque say so
+    private String calcUnits(String id) {
+	String u = UNITS.get(id);
+	if(u!=null && id.matches("Calc (WHP|HP|WTQ|TQ)") && this.es!=null &&
+	    this.es.sae)
+	    u += " (SAE)";
+	return u;
+    }
+
+    // units of get(id), null if it doesn't exist; nothing gets computed
+    public String units(Comparable<?> id) {
+	String k = name(id);
+	Column c = (this.columnCache==null)?null:this.columnCache.get(k);
+	if(c!=null) return c.getUnits();
+	if(!this.exists(k)) return null;
+	String u = UNITS.get(k);
+	if(u==null) {
+	    HashSet<String> visiting = new HashSet<String>();
+	    visiting.add(k);
+	    if(k.endsWith(" (ms)") && has(timing(k), visiting)) return "(ms)";
+	    Formula f = this.formula(k);
+	    if(f!=null && has(f.columns(), visiting)) return f.units;
+	    return this.raw(k).getUnits();
+	}
+	String p = passThrough(k);
+	if(p!=null) return this.raw(p).getUnits();
+	return calcUnits(k);
+    }
+
+    // everything id is calculated from; empty for raw columns
+    public String[] dependencies(Comparable<?> id) {
+	String k = name(id);
+	java.util.LinkedHashSet<String> out =
+	    new java.util.LinkedHashSet<String>();
+	String[] needs = NEEDS.get(k);
+	if(needs!=null) {
+	    for(String n : needs)
+		for(String alt : n.replaceFirst("^\\?", "").split("\\|"))
+		    if(!alt.equals("="+k)) out.add(alt.replaceFirst("^=", ""));
+	} else {
+	    for(String d : deps(k)) out.add(d);
+	}
+	return out.toArray(new String[0]);
+    }
+
+    public class RangeStats {
+	public Dataset.Range range;
+	public double rpmStart = Double.NaN, rpmEnd = Double.NaN;
+	public double duration = Double.NaN;	// seconds
+	public double peakWHP = Double.NaN;
+
+	public String toString() {
+	    String s = String.format("%.0f-%.0f RPM, %.1fs",
+		rpmStart, rpmEnd, duration);
+	    if(!Double.isNaN(peakWHP)) s += String.format(", %.0f WHP", peakWHP);
+	    return s;
+	}
+    }
 
     public ECUxDataset(String filename, Env env, Filter filter, int verbose)
 	    throws Exception {
-	super(filename, verbose);
+	this(LogSource.file(new File(filename)), env, filter, verbose);
+    }
+
+    public ECUxDataset(LogSource src, Env env, Filter filter, int verbose)
+	    throws Exception {
+	super(src, verbose);
 
+	this.verbose = verbose;
 	this.env = env;
 	this.filter = filter;
+	this.es = env.snapshot();
+	this.fs = filter.snapshot();
 
 	this.pedal = get(new String []
 		{"AcceleratorPedalPosition", "AccelPedalPosition", "Zeitronix TPS", "Accelerator position", "Pedal Position"});
@@ -64,12 +340,25 @@ public class ECUxDataset extends Dataset {
 	}
 	// get RPM AFTER getting TIME, so we have an accurate samples per sec
 	this.rpm = get("RPM");
+
+	// a row missing from a sparse log shouldn't pass or fail a filter
+	// by itself; filter on the values around it
+	this.pedal = filled(this.pedal);
+	this.throttle = filled(this.throttle);
+	this.gear = filled(this.gear);
+	this.zboost = filled(this.zboost);
+	this.rpm = filled(this.rpm);
 	buildRanges(); // regenerate ranges, splines
     }
 
+    private Column filled(Column c) {
+	if(c==null || !c.data.hasMissing()) return c;
+	return new Column(c.getId(), c.getUnits(), c.data.filled());
+    }
+
     private int MAW() {
         /* assume 10 == 1 sec smoothing */
-	return (int)Math.floor((this.samples_per_sec/10.0)*this.filter.HPTQMAW());
+	return (int)Math.floor((this.samples_per_sec/10.0)*this.fs.HPTQMAW);
     }
 
     private static final int LOG_UNKNOWN = -2;
@@ -419,11 +708,11 @@ public class ECUxDataset extends Dataset {
 
 	final double rho=1.293;	// kg/m^3 air, standard density
 
-	DoubleArray windDrag = v.pow(3).mult(0.5 * rho * this.env.c.Cd() * 
-	    this.env.c.FA());
+	DoubleArray windDrag = v.pow(3).mult(0.5 * rho * this.es.Cd * 
+	    this.es.FA);
 
-	DoubleArray rollingDrag = v.mult(this.env.c.rolling_drag() *
-	    this.env.c.mass() * 9.80665);
+	DoubleArray rollingDrag = v.mult(this.es.rolling_drag *
+	    this.es.mass * 9.80665);
 
 	return windDrag.add(rollingDrag);
     }
@@ -445,39 +734,122 @@ public class ECUxDataset extends Dataset {
     // given a list of id's, find the first that exists
     public Column get(Comparable<?> [] id) {
 	for (Comparable<?> k : id) {
-	    Column ret = null;
-	    try { ret=_get(k);
-	    } catch (NullPointerException e) {
-	    }
+	    Column ret = this.get(k);
 	    if(ret!=null) return ret;
 	}
 	return null;
     }
 
     public Column get(Comparable<?> id) {
+	String k = name(id);
+	// may be called from the super constructor, before our initializers
+	if(this.columnCache!=null) {
+	    Column c = this.columnCache.get(k);
+	    if(c!=null) return c;
+	    RuntimeException e = this.failed.get(k);
+	    if(e!=null) throw e;
+	}
+	Profiler.Timer t = Profiler.start("_get", id);
 	try {
-	    return _get(id);
+	    Column c = _get(id);
+	    if(c!=null && this.columnCache!=null) this.columnCache.put(k, c);
+	    return c;
 	} catch (NullPointerException e) {
 	    return null;
+	} finally {
+	    t.stop();
+	}
+    }
+
+    // depth of id in the calc graph: 0 for raw columns
+    private int level(String id, HashMap<String, Integer> levels,
+	HashSet<String> visiting) {
+	Integer l = levels.get(id);
+	if(l!=null) return l;
+	int out = 0;
+	// NEEDS has no cycles, but don't hang if someone adds one
+	if(visiting.add(id)) {
+	    for(String d : deps(id))
+		out = Math.max(out, level(d, levels, visiting)+1);
+	    visiting.remove(id);
+	}
+	levels.put(id, out);
+	return out;
+    }
+
+    private void failed(String id, Throwable e) {
+	if(this.verbose>0)
+	    System.out.println(this.getFileId() + ": " + id + ": " + e);
+	if(e instanceof RuntimeException)
+	    this.failed.put(name(id), (RuntimeException)e);
+    }
+
+    // Calculate keys and everything they need, each column once: by
+    // level of the calc graph, and in parallel within a level.
+    public void prefetch(Comparable<?>[] keys) {
+	HashMap<String, Integer> levels = new HashMap<String, Integer>();
+	for(Comparable<?> k : keys)
+	    level(k.toString(), levels, new HashSet<String>());
+
+	ArrayList<ArrayList<String>> byLevel = new ArrayList<ArrayList<String>>();
+	for(java.util.Map.Entry<String, Integer> e : levels.entrySet()) {
+	    if(this.columnCache.containsKey(e.getKey())) continue;
+	    while(byLevel.size()<=e.getValue())
+		byLevel.add(new ArrayList<String>());
+	    byLevel.get(e.getValue()).add(e.getKey());
+	}
+
+	// whatever fails is recorded (see failed); the rest of its level,
+	// and the levels after, go ahead anyway
+	ExecutorService pool = null;
+	try {
+	    for(ArrayList<String> ids : byLevel) {
+		if(ids.size()<2) {
+		    for(String id : ids) {
+			try {
+			    this.get(id);
+			} catch (RuntimeException e) {
+			    failed(id, e);
+			}
+		    }
+		    continue;
+		}
+		if(pool==null) pool = Executors.newFixedThreadPool(
+		    Runtime.getRuntime().availableProcessors());
+		ArrayList<Future<Column>> futures = new ArrayList<Future<Column>>();
+		for(final String id : ids) {
+		    futures.add(pool.submit(new Callable<Column>() {
+			public Column call() { return get(id); }
+		    }));
+		}
+		for(int i=0;i<futures.size();i++) {
+		    try {
+			futures.get(i).get();
+		    } catch (ExecutionException e) {
+			failed(ids.get(i), e.getCause());
+		    }
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    if(pool!=null) pool.shutdown();
 	}
     }
 
     private Column _get(Comparable<?> id) {
 	Column c=null;
+	// both are used as x axes all the time; generate them as needed
 	if(id.equals("Sample")) {
-	    double[] idx = new double[this.length()];
-	    for (int i=0;i<this.length();i++)
-		idx[i]=i;
-	    DoubleArray a = new DoubleArray(idx);
-	    c = new Column("Sample", "#", a);
+	    c = new Column("Sample", "#", DoubleArray.index(this.length()));
 	} else if(id.equals("TIME")) {
 	    DoubleArray a = super.get("TIME").data;
-	    c = new Column("TIME", "s", a.div(this.time_ticks_per_sec));
+	    c = new Column("TIME", "s", a.divView(this.time_ticks_per_sec));
 	} else if(id.equals("RPM")) {
 	    // smooth sampling quantum noise/jitter, RPM is an integer!
-	    if (this.samples_per_sec>10) {
+	    if (passThrough("RPM")==null) {
 		DoubleArray a = super.get("RPM").data.smooth();
-		c = new Column(id, "RPM", a);
+		c = new Column(id, calcUnits("RPM"), a);
 	    }
 	} else if(id.equals("RPM - raw")) {
 	    c = new Column(id, "RPM", super.get("RPM").data);
@@ -502,7 +874,7 @@ public class ECUxDataset extends Dataset {
 	} else if(id.equals("Calc MAF")) {
 	    // mass in g/sec
 	    DoubleArray a = super.get("MassAirFlow").data.
-		mult(this.env.f.MAF_correction()).add(this.env.f.MAF_offset());
+		mult(this.es.MAF_correction).add(this.es.MAF_offset);
 	    c = new Column(id, "g/sec", a);
 	} else if(id.equals("Calc MassAirFlow df/dt")) {
 	    // mass in g/sec
@@ -511,14 +883,14 @@ public class ECUxDataset extends Dataset {
 	    c = new Column(id, "g/sec^s", maf.derivative(time).max(0));
 	} else if(id.equals("Calc Turbo Flow")) {
 	    DoubleArray a = this.get("Calc MAF").data;
-	    c = new Column(id, "m^3/sec", a.div(1225*this.env.f.turbos()));
+	    c = new Column(id, "m^3/sec", a.div(1225*this.es.turbos));
 	} else if(id.equals("Calc Turbo Flow (lb/min)")) {
 	    DoubleArray a = this.get("Calc MAF").data;
-	    c = new Column(id, "lb/min", a.div(7.55*this.env.f.turbos()));
+	    c = new Column(id, "lb/min", a.div(7.55*this.es.turbos));
 	} else if(id.equals("Calc Fuel Mass")) {	// based on te
 	    final double gps_per_ccmin = 0.0114; // (grams/sec) per (cc/min)
-	    final double gps = this.env.f.injector()*gps_per_ccmin;
-	    final double cylinders = this.env.f.cylinders();
+	    final double gps = this.es.injector*gps_per_ccmin;
+	    final double cylinders = this.es.cylinders;
 	    Column bank1 = this.get("EffInjectorDutyCycle");
 	    Column bank2 = this.get("EffInjectorDutyCycleBank2");
 	    DoubleArray duty = bank1.data;
@@ -586,7 +958,7 @@ public class ECUxDataset extends Dataset {
 	    } else {
 		final double mph_per_mps = 2.23693629;
 		DoubleArray rpm = this.get("RPM").data;
-		c = new Column(id, "m/s", rpm.div(this.env.c.rpm_per_mph()).
+		c = new Column(id, "m/s", rpm.div(this.es.rpm_per_mph).
 		    div(mph_per_mps));
 	    }
 	} else if(id.equals("Calc Acceleration (RPM/s)")) {
@@ -608,37 +980,28 @@ public class ECUxDataset extends Dataset {
 	} else if(id.equals("Calc WHP")) {
 	    DoubleArray a = this.get("Calc Acceleration (m/s^2)").data;
 	    DoubleArray v = this.get("Calc Velocity").data;
-	    DoubleArray whp = a.mult(v).mult(this.env.c.mass()).
+	    DoubleArray whp = a.mult(v).mult(this.es.mass).
 		add(this.drag(v));	// in watts
 
 	    DoubleArray value = whp.mult(hp_per_watt);
-	    String l = "HP";
-	    if(this.env.sae.enabled()) {
-		value = value.mult(this.env.sae.correction());
-		l += " (SAE)";
-	    }
-	    c = new Column(id, l, value.movingAverage(this.MAW()));
+	    if(this.es.sae) value = value.mult(this.es.sae_correction);
+	    c = new Column(id, calcUnits("Calc WHP"),
+		value.movingAverage(this.MAW()));
 	} else if(id.equals("Calc HP")) {
 	    DoubleArray whp = this.get("Calc WHP").data;
-	    DoubleArray value = whp.div((1-this.env.c.driveline_loss())).
-		    add(this.env.c.static_loss());
-	    String l = "HP";
-	    if(this.env.sae.enabled()) l += " (SAE)";
-	    c = new Column(id, l, value);
+	    DoubleArray value = whp.div((1-this.es.driveline_loss)).
+		    add(this.es.static_loss);
+	    c = new Column(id, calcUnits("Calc HP"), value);
 	} else if(id.equals("Calc WTQ")) {
 	    DoubleArray whp = this.get("Calc WHP").data;
 	    DoubleArray rpm = this.get("RPM").data;
 	    DoubleArray value = whp.mult(5252).div(rpm);
-	    String l = "ft-lb";
-	    if(this.env.sae.enabled()) l += " (SAE)";
-	    c = new Column(id, l, value);
+	    c = new Column(id, calcUnits("Calc WTQ"), value);
 	} else if(id.equals("Calc TQ")) {
 	    DoubleArray hp = this.get("Calc HP").data;
 	    DoubleArray rpm = this.get("RPM").data;
 	    DoubleArray value = hp.mult(5252).div(rpm);
-	    String l = "ft-lb";
-	    if(this.env.sae.enabled()) l += " (SAE)";
-	    c = new Column(id, l, value);
+	    c = new Column(id, calcUnits("Calc TQ"), value);
 	/* TODO */
 	/*
 	} else if(id.equals("Calc Drag")) {
@@ -647,12 +1010,14 @@ public class ECUxDataset extends Dataset {
 	*/
 	} else if(id.equals("IntakeAirTemperature")) {
 	    c = super.get(id);
-	    if (c.getUnits().matches(".*C$"))
-		c = new Column(id, "\u00B0 F", ECUxDataset.toFahrenheit(c.data));
+	    if (passThrough("IntakeAirTemperature")==null)
+		c = new Column(id, calcUnits("IntakeAirTemperature"),
+		    ECUxDataset.toFahrenheit(c.data));
 	} else if(id.equals("IntakeAirTemperature (C)")) {
 	    c = super.get("IntakeAirTemperature");
-	    if (c.getUnits().matches(".*F$"))
-		c = new Column(id, "\u00B0 C", ECUxDataset.toCelcius(c.data));
+	    if (passThrough("IntakeAirTemperature (C)")==null)
+		c = new Column(id, calcUnits("IntakeAirTemperature (C)"),
+		    ECUxDataset.toCelcius(c.data));
 	} else if(id.equals("BoostPressureDesired (PSI)")) {
 	    DoubleArray abs = super.get("BoostPressureDesired").data;
 	    c = new Column(id, "PSI", this.toPSI(abs));
@@ -661,7 +1026,7 @@ public class ECUxDataset extends Dataset {
 	    c = new Column(id, "PSI", this.toPSI(abs));
 	} else if(id.equals("Zeitronix Boost (PSI)")) {
 	    DoubleArray boost = super.get("Zeitronix Boost").data;
-	    c = new Column(id, "PSI", boost.movingAverage(this.filter.ZeitMAW()));
+	    c = new Column(id, "PSI", boost.movingAverage(this.fs.ZeitMAW));
 	} else if(id.equals("Zeitronix Boost")) {
 	    DoubleArray boost = this.get("Zeitronix Boost (PSI)").data;
 	    c = new Column(id, "mBar", boost.mult(mbar_per_psi).add(1013));
@@ -786,7 +1151,7 @@ public class ECUxDataset extends Dataset {
 	} else if(id.equals("Calc Boost Spool Rate Zeit (RPM)")) {
 	    DoubleArray boost = this.get("Zeitronix Boost").data.smooth();
 	    DoubleArray rpm =
-		this.get("RPM").data.movingAverage(this.filter.ZeitMAW()).smooth();
+		this.get("RPM").data.movingAverage(this.fs.ZeitMAW).smooth();
 	    c = new Column(id, "mBar/RPM", boost.derivative(rpm).max(0));
 	} else if(id.equals("Calc Boost Spool Rate (time)")) {
 	    DoubleArray abs = this.get("BoostPressureActual (PSI)").data.smooth();
@@ -801,35 +1166,38 @@ public class ECUxDataset extends Dataset {
 	    DoubleArray out = super.get("BoostPressureActual").data;
 	    DoubleArray t = this.get("TIME").data;
 	    DoubleArray o = set.sub(out).derivative(t,this.MAW());
-	    c = new Column(id,"100mBar",o.mult(env.pid.time_constant).div(100));
+	    c = new Column(id,"100mBar",o.mult(this.es.pid_time_constant).
+		div(100));
 	} else if(id.equals("Calc LDR I e dt")) {
 	    DoubleArray set = super.get("BoostPressureDesired").data;
 	    DoubleArray out = super.get("BoostPressureActual").data;
 	    DoubleArray t = this.get("TIME").data;
 	    DoubleArray o = set.sub(out).
-		integral(t,0,env.pid.I_limit/env.pid.I*100);
-	    c = new Column(id,"100mBar",o.div(env.pid.time_constant).div(100));
+		integral(t,0,this.es.pid_I_limit/this.es.pid_I*100);
+	    c = new Column(id,"100mBar",o.div(this.es.pid_time_constant).
+		div(100));
 	} else if(id.equals("Calc LDR PID")) {
+	    final Env.Snapshot es = this.es;
 	    final DoubleArray.TransferFunction fP =
 		new DoubleArray.TransferFunction() {
 		    public final double f(double x, double y) {
-			if(Math.abs(x)<env.pid.P_deadband/100) return 0;
-			return x*env.pid.P;
+			if(Math.abs(x)<es.pid_P_deadband/100) return 0;
+			return x*es.pid_P;
 		    }
 	    };
 	    final DoubleArray.TransferFunction fD =
 		new DoubleArray.TransferFunction() {
 		    public final double f(double x, double y) {
 			y=Math.abs(y);
-			if(y<3) return x*env.pid.D[0];
-			if(y<5) return x*env.pid.D[1];
-			if(y<7) return x*env.pid.D[2];
-			return x*env.pid.D[3];
+			if(y<3) return x*es.pid_D(0);
+			if(y<5) return x*es.pid_D(1);
+			if(y<7) return x*es.pid_D(2);
+			return x*es.pid_D(3);
 		    }
 	    };
 	    DoubleArray E = this.get("Calc LDR error").data;
 	    DoubleArray P = E.func(fP);
-	    DoubleArray I = this.get("Calc LDR I e dt").data.mult(env.pid.I);
+	    DoubleArray I = this.get("Calc LDR I e dt").data.mult(this.es.pid_I);
 	    DoubleArray D = this.get("Calc LDR de/dt").data.func(fD,E);
 	    c = new Column(id, "%", P.add(I).add(D).max(0).min(95));
 	} else if(id.equals("Calc pspvds")) {
@@ -876,33 +1244,37 @@ public class ECUxDataset extends Dataset {
 	    }
 	}
 
-	if(c!=null) {
-	    this.getColumns().add(c);
-	    return c;
+	// env is still null while the super constructor runs
+	if(c==null && this.env!=null) {
+	    Formula f = this.env.formulas.get(id.toString());
+	    if(f!=null) c = f.column(this, this.es);
 	}
+
+	if(c!=null) return c;
 	return super.get(id);
     }
 
     protected boolean dataValid(int i) {
 	boolean ret = true;
-	if(this.filter==null) return ret;
-	if(!this.filter.enabled()) return ret;
+	// null while the super constructor runs
+	final Filter.Snapshot f = this.fs;
+	if(f==null || !f.enabled) return ret;
 
 	ArrayList<String> reasons = new ArrayList<String>();
 
-	if(filter.gear()>=0 && gear!=null && Math.round(gear.data.get(i)) != filter.gear()) {
+	if(f.gear>=0 && gear!=null && Math.round(gear.data.get(i)) != f.gear) {
 	    reasons.add("gear " + Math.round(gear.data.get(i)) +
-		    "!=" + filter.gear());
+		    "!=" + f.gear);
 	    ret=false;
 	}
-	if(pedal!=null && pedal.data.get(i)<filter.minPedal()) {
+	if(pedal!=null && pedal.data.get(i)<f.minPedal) {
 	    reasons.add("pedal " + pedal.data.get(i) +
-		    "<" + filter.minPedal());
+		    "<" + f.minPedal);
 	    ret=false;
 	}
-	if(throttle!=null && throttle.data.get(i)<filter.minThrottle()) {
+	if(throttle!=null && throttle.data.get(i)<f.minThrottle) {
 	    reasons.add("throttle " + throttle.data.get(i) +
-		    "<" + filter.minThrottle());
+		    "<" + f.minThrottle);
 	    ret=false;
 	}
 	if(zboost!=null && zboost.data.get(i)<0) {
@@ -911,21 +1283,21 @@ public class ECUxDataset extends Dataset {
 	    ret=false;
 	}
 	if(rpm!=null) {
-	    if(rpm.data.get(i)<filter.minRPM()) {
+	    if(rpm.data.get(i)<f.minRPM) {
 		reasons.add("rpm " + rpm.data.get(i) +
-		    "<" + filter.minRPM());
+		    "<" + f.minRPM);
 		ret=false;
 	    }
-	    if(rpm.data.get(i)>filter.maxRPM()) {
+	    if(rpm.data.get(i)>f.maxRPM) {
 		reasons.add("rpm " + rpm.data.get(i) +
-		    ">" + filter.maxRPM());
+		    ">" + f.maxRPM);
 		ret=false;
 	    }
 	    if(i>0 && rpm.data.size()>i+2 &&
-		rpm.data.get(i-1)-rpm.data.get(i+1)>filter.monotonicRPMfuzz()) {
+		rpm.data.get(i-1)-rpm.data.get(i+1)>f.monotonicRPMfuzz) {
 		reasons.add("rpm delta " +
 		    rpm.data.get(i-1) + "-" + rpm.data.get(i+1) + ">" +
-		    filter.monotonicRPMfuzz());
+		    f.monotonicRPMfuzz);
 		ret=false;
 	    }
 	}
@@ -940,20 +1312,21 @@ public class ECUxDataset extends Dataset {
 
     protected boolean rangeValid(Range r) {
 	boolean ret = true;
-	if(this.filter==null) return ret;
-	if(!this.filter.enabled()) return ret;
+	// null while the super constructor runs
+	final Filter.Snapshot f = this.fs;
+	if(f==null || !f.enabled) return ret;
 
 	ArrayList<String> reasons = new ArrayList<String>();
 
-	if(r.size()<filter.minPoints()) {
+	if(r.size()<f.minPoints) {
 	    reasons.add("points " + r.size() + "<" +
-		filter.minPoints());
+		f.minPoints);
 	    ret=false;
 	}
 	if(rpm!=null) {
-	    if(rpm.data.get(r.end)<rpm.data.get(r.start)+filter.minRPMRange()) {
+	    if(rpm.data.get(r.end)<rpm.data.get(r.start)+f.minRPMRange) {
 		reasons.add("RPM Range " + rpm.data.get(r.end) +
-		    "<" + rpm.data.get(r.start) + "+" +filter.minRPMRange());
+		    "<" + rpm.data.get(r.start) + "+" +f.minRPMRange);
 		ret=false;
 	    }
 	}
@@ -967,15 +1340,34 @@ public class ECUxDataset extends Dataset {
     }
 
     public void buildRanges() {
+	Profiler.Timer t = Profiler.start("buildRanges");
+	// env and filter are still null while the super constructor runs
+	if(this.env!=null) this.es = this.env.snapshot();
+	if(this.filter!=null) this.fs = this.filter.snapshot();
 	super.buildRanges();
+	t.stop();
+	this.rangeStats = null;
+	this.seriesCache = new HashMap<String, double[][][]>();
+	// calculated columns depend on env, the filter's smoothing and the
+	// file's columns (a merge adds some); keep them if none changed
+	String key = (this.es==null || this.fs==null)?null:
+	    this.es.version + "/" + this.fs.HPTQMAW + "/" + this.fs.ZeitMAW +
+	    "/" + this.getColumns().size();
+	if(key==null || !key.equals(this.columnsKey)) {
+	    this.columnCache = new ConcurrentHashMap<String, Column>();
+	    this.failed = new ConcurrentHashMap<String, RuntimeException>();
+	    this.columnsKey = key;
+	}
+	t = Profiler.start("spline");
         ArrayList<Dataset.Range> ranges = this.getRanges();
 	this.splines = new CubicSpline[ranges.size()];
         for(int i=0;i<ranges.size();i++) {
 	    splines[i] = null;
             Dataset.Range r=ranges.get(i);
             try {
-                double [] rpm = this.getData("RPM", r);
-                double [] time = this.getData("TIME", r);
+                double [][] rt = this.getSeries("RPM", "TIME", i);
+                double [] rpm = rt[0];
+                double [] time = rt[1];
 		if(time.length>0 && time.length==rpm.length)
 		    splines[i] = new CubicSpline(rpm, time);
 		else
@@ -983,6 +1375,141 @@ public class ECUxDataset extends Dataset {
 			"length problem " + time.length + ":" + rpm.length);
             } catch (Exception e) {}
         }
+	t.stop();
+    }
+
+    // rows of xy (from row start on) that aren't missing in valid
+    private static double[][] present(double[][] xy, DoubleArray valid,
+	int start) {
+	int n = 0;
+	for(int i=0;i<xy[0].length;i++) if(valid.isValid(start+i)) n++;
+	double[][] out = new double[2][n];
+	for(int i=0, j=0;i<xy[0].length;i++) {
+	    if(!valid.isValid(start+i)) continue;
+	    out[0][j] = xy[0][i];
+	    out[1][j++] = xy[1][i];
+	}
+	return out;
+    }
+
+    public ArrayList<RangeStats> getRangeStats() {
+	if(this.rangeStats!=null) return this.rangeStats;
+	ArrayList<Dataset.Range> ranges = this.getRanges();
+	ArrayList<RangeStats> out = new ArrayList<RangeStats>();
+	Column rpm = this.rpm;	// filled in
+	Column time = filled(this.get("TIME"));
+	Dataset.Stats[] whp = null;
+	try {
+	    whp = this.getStats("Calc WHP");
+	} catch (Exception e) {}
+	for(int i=0;i<ranges.size();i++) {
+	    Dataset.Range r = ranges.get(i);
+	    RangeStats rs = new RangeStats();
+	    rs.range = r;
+	    if(rpm!=null) {
+		rs.rpmStart = rpm.data.get(r.start);
+		rs.rpmEnd = rpm.data.get(r.end);
+	    }
+	    if(time!=null)
+		rs.duration = time.data.get(r.end)-time.data.get(r.start);
+	    if(whp!=null && i<whp.length) rs.peakWHP = whp[i].max;
+	    out.add(rs);
+	}
+	this.rangeStats = out;
+	return out;
+    }
+
+    // {x, y} of one range. both columns are fetched (and calculated) once
+    // per buildRanges(), and cut up for every range, so flipping between
+    // ranges costs nothing.
+    public double[][] getSeries(Comparable<?> xkey, Comparable<?> ykey,
+	int run) {
+	String k = xkey + "\n" + ykey;
+	double[][][] s = this.seriesCache.get(k);
+	if(s==null) {
+	    Column x = this.get(xkey);
+	    Column y = this.get(ykey);
+	    if(x==null || y==null) return null;
+	    ArrayList<Dataset.Range> ranges = this.getRanges();
+	    // leave out rows either is missing from (sparse logs), so lines
+	    // join up the rows that are there
+	    DoubleArray both = x.data.hasMissing() || y.data.hasMissing()?
+		x.data.masked(y.data):null;
+	    s = new double[ranges.size()][][];
+	    for(int i=0;i<ranges.size();i++) {
+		Dataset.Range r = ranges.get(i);
+		s[i] = new double[][] {
+		    x.data.toArray(r.start, r.end),
+		    y.data.toArray(r.start, r.end)};
+		if(both!=null) s[i] = present(s[i], both, r.start);
+	    }
+	    this.seriesCache.put(k, s);
+	}
+	if(run<0 || run>=s.length) return null;
+	return s[run];
+    }
+
+    // row of the log behind item of getSeries(xkey, ykey, run): the same
+    // rows are left out as there, so this is exact. -1 if there is none.
+    public int row(Comparable<?> xkey, Comparable<?> ykey, int run,
+	int item) {
+	Column x = this.get(xkey);
+	Column y = this.get(ykey);
+	ArrayList<Dataset.Range> ranges = this.getRanges();
+	if(x==null || y==null || run<0 || run>=ranges.size() || item<0)
+	    return -1;
+	Dataset.Range r = ranges.get(run);
+	if(!x.data.hasMissing() && !y.data.hasMissing()) {
+	    int i = r.start + item;
+	    return i<=r.end?i:-1;
+	}
+	// (as x.data.masked(y.data) has it, without the copy)
+	for(int i=r.start;i<=r.end;i++)
+	    if(x.data.isValid(i) && y.data.isValid(i) && item-- == 0)
+		return i;
+	return -1;
+    }
+
+    // ykey of one range on a fixed rpm grid: the range's rpm vs time
+    // spline gives the time of each grid point, and ykey is linearly
+    // interpolated in time. null if the range has no spline.
+    public double[][] getResampledData(Comparable<?> ykey, int run,
+	double step) {
+	ArrayList<Dataset.Range> ranges = this.getRanges();
+	if(run<0 || run>=ranges.size() || splines[run]==null) return null;
+
+	Dataset.Range r=ranges.get(run);
+	double [] rpm = this.getFilledData("RPM", r);
+	double [] time = this.getFilledData("TIME", r);
+	double [] y = this.getFilledData(ykey, r);
+	if(rpm==null || time==null || y==null || y.length!=time.length || time.length<2) return null;
+
+	double first = Math.ceil(rpm[0]/step)*step;
+	double last = Math.floor(rpm[rpm.length-1]/step)*step;
+	if(last<first) return null;
+
+	int n = (int)Math.round((last-first)/step)+1;
+	double [][] out = new double[2][n];
+	int j=0;
+	for(int i=0;i<n;i++) {
+	    double x = first + i*step;
+	    double t = splines[run].interpolate(x);
+	    // grid times only go up, so never walk backwards
+	    while(j<time.length-2 && time[j+1]<t) j++;
+	    double dt = time[j+1]-time[j];
+	    double f = (dt>0)?(t-time[j])/dt:0;
+	    f = Math.max(0, Math.min(1, f));
+	    out[0][i] = x;
+	    out[1][i] = y[j] + (y[j+1]-y[j])*f;
+	}
+	return out;
+    }
+
+    // like getData, with missing rows interpolated from their neighbours
+    private double[] getFilledData(Comparable<?> id, Dataset.Range r) {
+	final Column c = this.get(id);
+	if (c==null) return null;
+	return c.data.filled().toArray(r.start, r.end);
     }
 
     public double calcFATS(int run, int RPMStart, int RPMEnd) throws Exception {
@@ -994,7 +1521,7 @@ public class ECUxDataset extends Dataset {
 		throw new Exception("run interpolation failed");
 
 	    Dataset.Range r=ranges.get(run);
-	    double [] rpm = this.getData("RPM", r);
+	    double [] rpm = this.getFilledData("RPM", r);
 
 	    if(rpm[0]-100>RPMStart || rpm[rpm.length-1]+100<RPMEnd)
 		throw new Exception("run " + rpm[0] + "-" + rpm[rpm.length-1] +
@@ -4,6 +4,11 @@ import java.io.File;
 import java.io.IOException;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.prefs.Preferences;
 
 import java.awt.Point;
@@ -16,7 +21,6 @@ import com.apple.eawt.*;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.XYPlot;
 
-import org.jfree.data.xy.DefaultXYDataset;
 
 import org.jfree.ui.ApplicationFrame;
 import org.jfree.ui.RefineryUtilities;
@@ -24,6 +28,7 @@ import org.jfree.ui.RefineryUtilities;
 import org.nyet.util.*;
 
 import org.nyet.logfile.Dataset;
+import org.nyet.logfile.LogSource;
 import org.nyet.logfile.Dataset.DatasetId;
 
 public class ECUxPlot extends ApplicationFrame implements SubActionListener, FileDropHost {
@@ -31,7 +36,11 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
      * 
      */
     private static final long serialVersionUID = 1L;
+    // plain, gzipped or zipped up
+    private static final String[] LOG_EXTENSIONS = {"csv", "gz", "zip"};
+
     // each file loaded has an associated dataset
+
     private TreeMap<String, ECUxDataset> fileDatasets = new TreeMap<String, ECUxDataset>();
     private ArrayList<String> files = new ArrayList<String>();
 
@@ -42,6 +51,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
     private JMenuBar menuBar;
     private AxisMenu xAxis;
     private AxisMenu yAxis[] = new AxisMenu[2];
+    private AxisMenu.Model axisModel = new AxisMenu.Model();
 
     // Dialog boxes
     private JFileChooser fc;
@@ -109,6 +119,31 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	return ECUxPlot.scatter(this.prefs);
     }
 
+    // rpm grid step when resampling, 0 if off
+    public static double resample(Preferences prefs) {
+	if(!prefs.getBoolean("resample", false)) return 0;
+	return prefs.getInt("resampleRPM", 50);
+    }
+
+    private double resample() {
+	return ECUxPlot.resample(this.prefs);
+    }
+
+    // draw the chart off the EDT
+    public static boolean background(Preferences prefs) {
+	return prefs.getBoolean("background", false);
+    }
+
+    // pack columns of logs as they are loaded
+    public static boolean compact(Preferences prefs) {
+	return prefs.getBoolean("compact", false);
+    }
+
+    // Merge File... interpolates the merged columns on a spline, not a line
+    public static boolean mergeSpline(Preferences prefs) {
+	return prefs.getBoolean("mergeSpline", false);
+    }
+
     private boolean showFATS() {
       return this.prefs.getBoolean("showfats", false);
     }
@@ -146,7 +181,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
     }
     private void prefsPutYkeys(int axis) {
 	final XYPlot plot = this.chartPanel.getChart().getXYPlot();
-	DefaultXYDataset dataset = (DefaultXYDataset)plot.getDataset(axis);
+	ECUxXYDataset dataset = (ECUxXYDataset)plot.getDataset(axis);
 	this.prefsPutYkeys(axis, ECUxChartFactory.getDatasetYkeys(dataset));
     }
 
@@ -159,16 +194,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	this.addChartY(this.ykeys(axis), axis);
     }
 
-    private void fileDatasetsChanged() {
-	// set title
-	this.setTitle("ECUxPlot " + Strings.join(", ", fileDatasets.keySet()));
-
-	// xaxis label depends on units found in files
-	updateXAxisLabel();
-
-	// Add all the data we just finished loading fom the files
-	addChartYFromPrefs();
-
+    // false if there is nothing to put in them
+    private boolean rebuildAxisMenus() {
 	// merge ids using a TreeSet - only add new headers
 	// note that TreeSet keeps us sorted!
 	TreeSet<DatasetId> hset = new TreeSet<DatasetId>();
@@ -176,24 +203,51 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	    for(DatasetId s : d.getIds())
 		if(s!=null) hset.add(s);
 	}
-	DatasetId [] ids = hset.toArray(new DatasetId[0]);
-	if(ids.length<=0) return;
+	if(hset.isEmpty()) return false;
+	// user formulas, marked for AxisMenu by the "= " in front of the tip
+	for(String name : this.env.formulas.names()) {
+	    Formula f = this.env.formulas.get(name);
+	    if(f!=null) hset.add(new DatasetId(f.name, "= " + f.expr, f.units));
+	}
+
+	// the menus fill themselves in from the model when next opened
+	this.axisModel.set(hset);
+	if(this.xAxis==null) {
+	    this.xAxis = new AxisMenu("X Axis", this.axisModel, this, true,
+		this.xkey());
+	    this.menuBar.add(xAxis, 3);
+
+	    this.yAxis[0] = new AxisMenu("Y Axis", this.axisModel, this, false,
+		this.ykeys(0));
+	    this.menuBar.add(yAxis[0], 4);
+
+	    this.yAxis[1] = new AxisMenu("Y Axis2", this.axisModel, this, false,
+		this.ykeys(1));
+	    this.menuBar.add(yAxis[1], 5);
+	} else {
+	    this.xAxis.setOnlySelected(new Comparable<?>[] {this.xkey()});
+	    this.yAxis[0].setOnlySelected(this.ykeys(0));
+	    this.yAxis[1].setOnlySelected(this.ykeys(1));
+	}
+	return true;
+    }
+
+    private void fileDatasetsChanged() {
+	// a range picked from a file that has gone
+	if(this.filter.currentFile!=null &&
+	    !this.fileDatasets.containsKey(this.filter.currentFile))
+	    this.filter.currentFile = null;
 
-	// rebuild the axis menus
-	if(this.xAxis!=null) this.menuBar.remove(this.xAxis);
-	if(this.yAxis[0]!=null) this.menuBar.remove(this.yAxis[0]);
-	if(this.yAxis[1]!=null) this.menuBar.remove(this.yAxis[1]);
+	// set title
+	this.setTitle("ECUxPlot " + Strings.join(", ", fileDatasets.keySet()));
 
-	this.xAxis = new AxisMenu("X Axis", ids, this, true, this.xkey());
-	this.menuBar.add(xAxis, 3);
+	// xaxis label depends on units found in files
+	updateXAxisLabel();
 
-	this.yAxis[0] = new AxisMenu("Y Axis", ids, this, false,
-	    this.ykeys(0));
-	this.menuBar.add(yAxis[0], 4);
+	// Add all the data we just finished loading fom the files
+	addChartYFromPrefs();
 
-	this.yAxis[1] = new AxisMenu("Y Axis2", ids, this, false,
-	    this.ykeys(1));
-	this.menuBar.add(yAxis[1], 5);
+	if(!rebuildAxisMenus()) return;
 
 	// hide/unhide filenames in the legend
 	final XYPlot plot = this.chartPanel.getChart().getXYPlot();
@@ -254,27 +308,72 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	WaitCursor.stopWaitCursor(this);
     }
     private void _loadFile(File file, boolean replace) {
+	ArrayList<LogSource> logs;
 	try {
+	    logs = LogSource.list(file);
+
 	    // replacing, nuke all the currently loaded datasets
 	    if(replace) this.nuke();
 
 	    if(this.chartPanel == null) {
 		final JFreeChart chart =
 		    ECUxChartFactory.create2AxisChart(this.scatter());
-		this.chartPanel = new ECUxChartPanel(chart);
+		this.chartPanel = new ECUxChartPanel(chart,
+		    background(this.prefs));
+		this.chartPanel.setDatasets(this.fileDatasets);
 		setContentPane(this.chartPanel);
 	    }
 
-	    ECUxDataset data = new ECUxDataset(file.getAbsolutePath(),
-		    this.env, this.filter, this.verbose);
-
-	    this.fileDatasets.put(file.getName(), data);
-	    this.files.add(file.getAbsolutePath());
+	    if(logs.size()==1) {
+		this.fileDatasets.put(logs.get(0).name, load(logs.get(0)));
+		this.files.add(file.getAbsolutePath());
+		return;
+	    }
 	} catch (Exception e) {
 	    JOptionPane.showMessageDialog(this, e);
 	    e.printStackTrace();
 	    return;
 	}
+
+	// a zip of several logs: load them side by side, and keep the ones
+	// that load
+	final int threads = Math.min(logs.size(),
+	    Runtime.getRuntime().availableProcessors());
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    ArrayList<Future<ECUxDataset>> futures =
+		new ArrayList<Future<ECUxDataset>>();
+	    for(final LogSource src : logs) {
+		futures.add(pool.submit(new Callable<ECUxDataset>() {
+		    public ECUxDataset call() throws Exception {
+			return load(src);
+		    }
+		}));
+	    }
+	    boolean any = false;
+	    for(int i=0;i<logs.size();i++) {
+		try {
+		    this.fileDatasets.put(logs.get(i).name,
+			futures.get(i).get());
+		    any = true;
+		} catch (Exception e) {
+		    Throwable t = (e instanceof ExecutionException)?
+			e.getCause():e;
+		    JOptionPane.showMessageDialog(this, logs.get(i) + ": " + t);
+		    t.printStackTrace();
+		}
+	    }
+	    if(any) this.files.add(file.getAbsolutePath());
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    private ECUxDataset load(LogSource src) throws Exception {
+	ECUxDataset data = new ECUxDataset(src, this.env, this.filter,
+	    this.verbose);
+	if(compact(this.prefs)) data.pack();
+	return data;
     }
 
     public void setMyVisible(boolean b) {
@@ -324,6 +423,128 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	return ret;
     }
 
+    // file name of d's export: the stem of its name, with what a zip
+    // entry's name (zip!entry) or a path would add made safe, and a
+    // suffix if another log of this export already has it
+    private static String exportName(ECUxDataset d, Set<String> used) {
+	String id = d.getFileId();
+	String stem = Files.stem(id);
+	if(stem.length()==0) stem = id;
+	stem = stem.replaceAll("[!/\\\\:]", "_");
+	String name = stem;
+	// (case-insensitive file systems)
+	for(int i=2;!used.add(name.toLowerCase());i++) name = stem + "_" + i;
+	return name + ".ecuxcol";
+    }
+
+    // columns on the chart, raw or calculated, for each file and range
+    public ArrayList<String> exportData(String dir) throws Exception {
+	ArrayList<Comparable<?>> keys = new ArrayList<Comparable<?>>();
+	keys.add(this.xkey());
+	keys.addAll(Arrays.asList(this.ykeys(0)));
+	keys.addAll(Arrays.asList(this.ykeys(1)));
+
+	ArrayList<String> ret = new ArrayList<String>();
+	HashSet<String> used = new HashSet<String>();
+	for(ECUxDataset d : this.fileDatasets.values()) {
+	    String fname = dir + File.separator + exportName(d, used);
+	    ArrayList<String> ids = org.nyet.logfile.ColumnFile.write(d,
+		keys.toArray(new Comparable<?>[0]), new File(fname));
+	    ret.add(fname + ": " + Strings.join(", ", ids));
+	}
+	return ret;
+    }
+
+    // add the columns of another logger's file to a loaded one
+    private void mergeFile(String name, File file) {
+	ECUxDataset data = this.fileDatasets.get(name);
+	if(data==null) return;
+	// a zip of several logs: which one
+	LogSource src;
+	try {
+	    ArrayList<LogSource> logs = LogSource.list(file);
+	    src = logs.get(0);
+	    if(logs.size()>1) {
+		Object pick = JOptionPane.showInputDialog(this, "Merge which",
+		    "Merge File", JOptionPane.QUESTION_MESSAGE, null,
+		    logs.toArray(), src);
+		if(pick==null) return;
+		src = (LogSource)pick;
+	    }
+	} catch (Exception e) {
+	    JOptionPane.showMessageDialog(this, e);
+	    e.printStackTrace();
+	    return;
+	}
+	WaitCursor.startWaitCursor(this);
+	try {
+	    ECUxDataset from = new ECUxDataset(src, this.env, this.filter,
+		this.verbose);
+	    int align = (data.exists("RPM") && from.exists("RPM"))?
+		Merge.ALIGN_RPM:Merge.ALIGN_TIME;
+	    int interp = mergeSpline(this.prefs)?
+		Merge.INTERP_SPLINE:Merge.INTERP_LINEAR;
+	    Merge m = new Merge(data, from, align, interp);
+	    if(compact(this.prefs)) data.pack();
+	    data.buildRanges();
+	    fileDatasetsChanged();
+	    JOptionPane.showMessageDialog(this, String.format(
+		"Merged %s into %s, offset %.2fs%s:\n%s", src.name, name,
+		m.offset, Double.isNaN(m.correlation)?"":
+		    String.format(" (RPM r=%.2f)", m.correlation),
+		Strings.join("\n", m.merged)));
+	} catch (Exception e) {
+	    JOptionPane.showMessageDialog(this, e);
+	    e.printStackTrace();
+	}
+	WaitCursor.stopWaitCursor(this);
+    }
+
+    // stats of the y axis columns vs RPM across many files, in a new window.
+    // the files are read in the background; the chart is made when done.
+    private void aggregateFiles(final List<File> files) {
+	final Comparable<?>[] ykeys = this.ykeys(0);
+	Object width = JOptionPane.showInputDialog(this, "RPM per bin",
+	    "Aggregate Files", JOptionPane.QUESTION_MESSAGE, null, null,
+	    this.prefs.getInt("aggregateBin", 100));
+	if(width==null) return;
+	int w;
+	try {
+	    w = Integer.parseInt(width.toString().trim());
+	} catch (NumberFormatException e) {
+	    w = 0;
+	}
+	if(w<=0) {
+	    JOptionPane.showMessageDialog(this, "Bad bin width: " + width);
+	    return;
+	}
+	this.prefs.putInt("aggregateBin", w);
+	final int bin = w;
+	final ECUxPlot self = this;
+	WaitCursor.startWaitCursor(this);
+	new javax.swing.SwingWorker<Aggregate[], Void>() {
+	    protected Aggregate[] doInBackground() throws Exception {
+		return Aggregate.run(files, "RPM", ykeys, bin, self.env,
+		    self.filter, self.verbose);
+	    }
+	    protected void done() {
+		WaitCursor.stopWaitCursor(self);
+		try {
+		    org.jfree.chart.ChartFrame frame =
+			new org.jfree.chart.ChartFrame("Aggregate",
+			    ECUxChartFactory.createAggregateChart(get()));
+		    frame.pack();
+		    frame.setVisible(true);
+		} catch (Exception e) {
+		    Throwable c = (e instanceof ExecutionException &&
+			e.getCause()!=null)?e.getCause():e;
+		    JOptionPane.showMessageDialog(self, c);
+		    c.printStackTrace();
+		}
+	    }
+	}.execute();
+    }
+
     private Point newChart() { return this.newChart(null, null); }
     private Point newChart(String preset, Point where) {
 	// do not exit if this child plot is closed
@@ -424,6 +645,27 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 		}
 		this.prefs.put("exportDir", dir);
 	    }
+	} else if(source.getText().equals("Export Data")) {
+	    if(this.fileDatasets.isEmpty()) {
+		JOptionPane.showMessageDialog(this, "Open a CSV first");
+		return;
+	    }
+	    String dir = this.prefs.get("exportDir",
+		System.getProperty("user.home"));
+	    JFileChooser fileChooser = new JFileChooser(dir);
+	    fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+	    if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+		dir = fileChooser.getSelectedFile().getPath();
+		try {
+		    ArrayList<String> seen = exportData(dir);
+		    JOptionPane.showMessageDialog(this, "Exported:\n" +
+			Strings.join("\n", seen));
+		} catch (Exception e) {
+		    JOptionPane.showMessageDialog(this, e);
+		    e.printStackTrace();
+		}
+		this.prefs.put("exportDir", dir);
+	    }
 	} else if(source.getText().equals("Clear Chart")) {
 	    // nuke axis menus
 	    if(this.menuBar!=null) {
@@ -438,6 +680,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	    }
 	    this.xAxis = null;
 	    this.yAxis = new AxisMenu[2];
+	    this.axisModel = new AxisMenu.Model();
 	    this.nuke();
 	} else if(source.getText().equals("Close Chart")) {
 	    this.plotlist.remove(this);
@@ -453,7 +696,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 		String dir = this.prefs.get("chooserDir",
 		    System.getProperty("user.home"));
 		fc = new JFileChooser(dir);
-		fc.setFileFilter(new GenericFileFilter("csv", "CSV File"));
+		fc.setFileFilter(
+		    new GenericFileFilter(LOG_EXTENSIONS, "CSV File"));
 	    }
 	    int ret = fc.showOpenDialog(this);
 	    if(ret == JFileChooser.APPROVE_OPTION) {
@@ -468,26 +712,84 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 		this.prefs.put("chooserDir",
 		    fc.getCurrentDirectory().toString());
 	    }
+	} else if(source.getText().equals("Merge File...")) {
+	    if(this.fileDatasets.isEmpty()) {
+		JOptionPane.showMessageDialog(this, "Open a CSV first");
+		return;
+	    }
+	    Object name = this.fileDatasets.firstKey();
+	    if(this.fileDatasets.size()>1) {
+		name = JOptionPane.showInputDialog(this, "Merge into",
+		    "Merge File", JOptionPane.QUESTION_MESSAGE, null,
+		    this.fileDatasets.keySet().toArray(), name);
+		if(name==null) return;
+	    }
+	    String dir = this.prefs.get("chooserDir",
+		System.getProperty("user.home"));
+	    JFileChooser chooser = new JFileChooser(dir);
+	    chooser.setFileFilter(
+		new GenericFileFilter(LOG_EXTENSIONS, "CSV File"));
+	    if(chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+		mergeFile(name.toString(), chooser.getSelectedFile());
+		this.prefs.put("chooserDir",
+		    chooser.getCurrentDirectory().toString());
+	    }
+	} else if(source.getText().equals("Aggregate Files...")) {
+	    String dir = this.prefs.get("chooserDir",
+		System.getProperty("user.home"));
+	    JFileChooser chooser = new JFileChooser(dir);
+	    chooser.setFileFilter(
+		new GenericFileFilter(LOG_EXTENSIONS, "CSV File"));
+	    chooser.setMultiSelectionEnabled(true);
+	    if(chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+		aggregateFiles(Arrays.asList(chooser.getSelectedFiles()));
+		this.prefs.put("chooserDir",
+		    chooser.getCurrentDirectory().toString());
+	    }
 	} else if(source.getText().equals("Scatter plot")) {
 	    boolean s = source.isSelected();
 	    this.prefs.putBoolean("scatter", s);
 	    if(this.chartPanel != null)
 		ECUxChartFactory.setChartStyle(this.chartPanel.getChart(),
 		    !s, s);
+	} else if(source.getText().equals("Resample to RPM grid")) {
+	    this.prefs.putBoolean("resample", source.isSelected());
+	    rebuild();
+	} else if(source.getText().equals("Render in background")) {
+	    this.prefs.putBoolean("background", source.isSelected());
+	    if(this.chartPanel!=null) {
+		// ChartPanel can't switch its buffering, so swap the panel
+		final JFreeChart chart = this.chartPanel.getChart();
+		this.chartPanel.setChart(null);
+		this.chartPanel = new ECUxChartPanel(chart,
+		    source.isSelected());
+		this.chartPanel.setDatasets(this.fileDatasets);
+		setContentPane(this.chartPanel);
+		validate();
+	    }
+	} else if(source.getText().equals("Compact storage")) {
+	    this.prefs.putBoolean("compact", source.isSelected());
+	    if(source.isSelected())
+		for(ECUxDataset d : this.fileDatasets.values()) d.pack();
+	} else if(source.getText().equals("Merge with spline")) {
+	    this.prefs.putBoolean("mergeSpline", source.isSelected());
 	} else if(source.getText().equals("Filter data")) {
 	    this.filter.enabled(source.isSelected());
 	    rebuild();
 	} else if(source.getText().equals("Show all ranges")) {
 	    this.filter.showAllRanges(source.isSelected());
+	    this.filter.currentFile = null;
 	    rebuild();
 	} else if(source.getText().equals("Next range...")) {
 	    filter.currentRange++;
-	    rebuild();
+	    refreshSeries();
 	} else if(source.getText().equals("Previous range...")) {
 	    if(filter.currentRange > 0) {
 	        filter.currentRange--;
 	    }
-	    rebuild();
+	    refreshSeries();
+	} else if(source.getText().equals("Range index...")) {
+	    showRangeIndex();
 	} else if(source.getText().equals("Configure filter...")) {
 	    if(this.fe == null) this.fe =
 		new FilterEditor(this.prefs, this.filter);
@@ -503,6 +805,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	} else if(source.getText().equals("Edit PID...")) {
 	    if(this.pe == null) this.pe = new PIDEditor(this.env.pid);
 	    this.pe.showDialog(this, "PID");
+	} else if(source.getText().equals("Edit formulas...")) {
+	    editFormulas();
 	} else if(source.getText().equals("Apply SAE")) {
 	    this.env.sae.enabled(source.isSelected());
 	    rebuild();
@@ -510,6 +814,18 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	} else if(source.getText().equals("Edit SAE constants...")) {
 	    if(this.sae == null) this.sae = new SAEEditor(this.prefs, this.env.sae);
 	    this.sae.showDialog(this, "SAE");
+	} else if(source.getText().equals("Diagnostics...")) {
+	    javax.swing.JTextArea text = new javax.swing.JTextArea(
+		Profiler.enabled()?Profiler.report():
+		"Timings are off; run with -v or -V to collect them.\n",
+		25, 90);
+	    text.setFont(new java.awt.Font("Monospaced", java.awt.Font.PLAIN, 12));
+	    text.setEditable(false);
+	    Object[] choices = {"OK", "Reset"};
+	    int ret = JOptionPane.showOptionDialog(this, new JScrollPane(text),
+		"Diagnostics", JOptionPane.DEFAULT_OPTION,
+		JOptionPane.PLAIN_MESSAGE, null, choices, choices[0]);
+	    if(ret==1) Profiler.reset();
 	} else if(source.getText().equals("About...")) {
 	    JOptionPane.showMessageDialog(this, new AboutPanel(),
 		    "About ECUxPlot", JOptionPane.PLAIN_MESSAGE);
@@ -594,7 +910,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	// find x axis label. just pick first one that has units we can use
 	String label = "";
 	for (ECUxDataset data : this.fileDatasets.values()) {
-	    if(data.get(this.xkey())!=null) {
+	    if(data.exists(this.xkey())) {
 		String units = data.units(this.xkey());
 		if(units != null) {
 		    label = this.xkey().toString();
@@ -607,7 +923,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	plot.getDomainAxis().setLabel(label);
     }
 
-    private void addDataset(int axis, DefaultXYDataset d,
+    private void addDataset(int axis, ECUxXYDataset d,
 	    Dataset.Key ykey) {
 	// ugh. need an index for axis stroke, so we cant just do a get.
 	// walk the filenames and get it, and the index for it
@@ -624,7 +940,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 
 	/* returns the series indicies of the dataset we just added */
 	Integer[] series =
-	    ECUxChartFactory.addDataset(d, data, this.xkey(), ykey, filter);
+	    ECUxChartFactory.addDataset(d, data, this.xkey(), ykey, filter,
+		this.resample());
 
 	/* set the color for those series */
 	ECUxChartFactory.setAxisPaint(this.chartPanel.getChart(), axis,
@@ -646,26 +963,111 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	if(this.fatsFrame!=null)
 	    this.fatsFrame.setDatasets(this.fileDatasets);
 
+	refreshSeries();
+
+	WaitCursor.stopWaitCursor(this);
+	this.setMyVisible(true);
+    }
+
+    // re-add the series for the current range(s) from the ranges we
+    // already have. the datasets cache the series, so this is cheap.
+    // calculate keys (and the x axis) for every file up front, so shared
+    // intermediate columns are built once and independent ones in parallel
+    private void prefetch(Comparable<?>[] keys) {
+	Comparable<?>[] all = Arrays.copyOf(keys, keys.length+1);
+	all[keys.length] = this.xkey();
+	for(ECUxDataset data : this.fileDatasets.values())
+	    data.prefetch(all);
+    }
+
+    private void refreshSeries() {
+	if(this.chartPanel==null) return;
+
 	final XYPlot plot = this.chartPanel.getChart().getXYPlot();
+	ArrayList<Comparable<?>> keys = new ArrayList<Comparable<?>>();
+	for(int axis=0;axis<plot.getDatasetCount();axis++)
+	    keys.addAll(Arrays.asList(ECUxChartFactory.getDatasetYkeys(
+		(ECUxXYDataset)plot.getDataset(axis))));
+	prefetch(keys.toArray(new Comparable<?>[0]));
 	for(int axis=0;axis<plot.getDatasetCount();axis++) {
-	    org.jfree.data.xy.XYDataset pds = plot.getDataset(axis);
-	    final DefaultXYDataset newdataset = new DefaultXYDataset();
+	    final ECUxXYDataset pds = (ECUxXYDataset)plot.getDataset(axis);
+	    final ECUxXYDataset newdataset = new ECUxXYDataset();
+	    // series that come back unchanged keep their bounds
+	    newdataset.setPrevious(pds);
+	    // addDataset adds every range of a file's ykey, so once each
+	    HashSet<String> seen = new HashSet<String>();
 	    for(int series=0;series<pds.getSeriesCount();series++) {
 		Dataset.Key ykey = (Dataset.Key)pds.getSeriesKey(series);
-		addDataset(axis, newdataset, ykey);
+		if(seen.add(ykey.getFilename() + "\n" + ykey.getString()))
+		    addDataset(axis, newdataset, ykey);
 	    }
+	    newdataset.setPrevious(null);
 	    plot.setDataset(axis, newdataset);
 	}
 	updateXAxisLabel(plot);
+    }
 
-	WaitCursor.stopWaitCursor(this);
-	this.setMyVisible(true);
+    private void editFormulas() {
+	StringBuilder msg = new StringBuilder(
+	    "name = expression, e.g.\n" +
+	    "    Calc Load2 (%) = MassAirFlow*3.6/RPM/0.001072\n" +
+	    "[bracket] names with spaces, \"name =\" removes a formula.\n");
+	for(String name : this.env.formulas.names())
+	    msg.append("\n    " + name + " = " + this.env.formulas.expr(name));
+	String s = JOptionPane.showInputDialog(this, msg.toString(),
+	    "Edit formulas", JOptionPane.PLAIN_MESSAGE);
+	if(s==null || s.trim().length()==0) return;
+	try {
+	    this.env.formulas.put(s);
+	} catch (Exception e) {
+	    JOptionPane.showMessageDialog(this, e.getMessage());
+	    return;
+	}
+	// an edited formula has to be recalculated
+	rebuild();
+	rebuildAxisMenus();
+	this.menuBar.revalidate();
+    }
+
+    // every range of every file, with its stats. picking one shows it.
+    private void showRangeIndex() {
+	// picking one range means nothing while all of them are shown
+	if(this.filter.showAllRanges()) {
+	    JOptionPane.showMessageDialog(this,
+		"Turn off \"Show all ranges\" to see one range at a time");
+	    return;
+	}
+	ArrayList<String> list = new ArrayList<String>();
+	ArrayList<Integer> runs = new ArrayList<Integer>();
+	ArrayList<String> ids = new ArrayList<String>();
+	for(ECUxDataset data : this.fileDatasets.values()) {
+	    ArrayList<ECUxDataset.RangeStats> stats = data.getRangeStats();
+	    for(int i=0;i<stats.size();i++) {
+		list.add(Files.filenameStem(data.getFileId()) + " Run " +
+		    (i+1) + ": " + stats.get(i));
+		runs.add(i);
+		ids.add(data.getFileId());
+	    }
+	}
+	if(list.isEmpty()) {
+	    JOptionPane.showMessageDialog(this, "No ranges");
+	    return;
+	}
+	Object pick = JOptionPane.showInputDialog(this, "Show range",
+	    "Range index", JOptionPane.PLAIN_MESSAGE, null, list.toArray(),
+	    list.get(0));
+	if(pick==null) return;
+	// just that file's run, the others are left empty
+	int i = list.indexOf(pick);
+	this.filter.currentRange = runs.get(i);
+	this.filter.currentFile = ids.get(i);
+	refreshSeries();
     }
 
     private void removeAllY() { this.removeAllY(0); this.removeAllY(1); }
     private void removeAllY(int axis) {
 	final XYPlot plot = this.chartPanel.getChart().getXYPlot();
-	ECUxChartFactory.removeDataset((DefaultXYDataset)plot.getDataset(axis));
+	ECUxChartFactory.removeDataset((ECUxXYDataset)plot.getDataset(axis));
 	this.yAxis[axis].uncheckAll();
     }
 
@@ -679,7 +1081,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	if(add && !(data.exists(ykey)) )
 	    return;
 	final XYPlot plot = this.chartPanel.getChart().getXYPlot();
-	DefaultXYDataset pds = (DefaultXYDataset)plot.getDataset(axis);
+	ECUxXYDataset pds = (ECUxXYDataset)plot.getDataset(axis);
 	if(add) {
 	    Dataset.Key key = data.new Key(data.getFileId(),
 		    ykey.toString());
@@ -691,6 +1093,7 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
     }
 
     private void addChartY(Comparable<?>[] ykey, int axis) {
+	prefetch(ykey);
 	for(Comparable<?> k : ykey)
 	    editChartY(k, axis, true);
     }
@@ -704,7 +1107,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 
     public void savePreset(Comparable<?> name) {
 	if(this.chartPanel==null) return;
-	new ECUxPreset(name, this.xkey(), this.ykeys(0), this.ykeys(1), this.scatter());
+	new ECUxPreset(name, this.xkey(), this.ykeys(0), this.ykeys(1),
+	    this.scatter()).formulas(this.env.formulas);
 	this.chartTitle((String)name);
 	this.prefs.put("title", (String)name);
     }
@@ -732,6 +1136,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	// get rid of everything
 	removeAllY();
 
+	if(p.restoreFormulas(this.env.formulas)) rebuildAxisMenus();
+
 	prefsPutXkey(p.xkey());
 	// updateXAxisLabel depends on xkey prefs
 	updateXAxisLabel();
@@ -810,6 +1216,8 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
     private static class Options {
 	public String preset = null;
 	public File output = null;
+	public String exportDir = null;
+	public String profile = null;
 	public java.awt.Dimension size = null;
 	public ArrayList<String> files = new ArrayList<String>();
 	public int verbose = 0;
@@ -825,6 +1233,10 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 			    this.preset = args[i+1];
 			else if(args[i].equals("-o"))
 			    this.output = new File(args[i+1]);
+			else if(args[i].equals("-e"))
+			    this.exportDir = args[i+1];
+			else if(args[i].equals("-V"))
+			    this.profile = args[i+1];
 			else if(args[i].equals("-w"))
 			    width = Integer.valueOf(args[i+1]);
 			else if(args[i].equals("-h"))
@@ -840,8 +1252,9 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 		    }
 		    if(args[i].equals("-?")) {
 			System.out.println(
-			    "usage: ECUxPlot [-v] [-p Preset] [-o OutputFile] " +
-			    "[-w width] [-h height] [LogFiles ... ]");
+			    "usage: ECUxPlot [-v] [-V ProfileFile|-] [-p Preset] " +
+			    "[-o OutputFile] [-e ExportDir] [-w width] [-h height] " +
+			    "[LogFiles ... ]");
 			System.out.println("       ECUxPlot -l (list presets)");
 			System.out.println("       ECUxPlot -? (show usage)");
 			System.exit(0);
@@ -858,6 +1271,30 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 	    public void run() {
 		final Options o = new Options(args);
 
+		// timings cost something; only when asked for
+		if(o.verbose>0 || o.profile!=null) Profiler.setEnabled(true);
+
+		// phase timings as JSON, whichever way we exit
+		if(o.profile!=null) {
+		    Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+			    String json = Profiler.toJSON();
+			    if(o.profile.equals("-")) {
+				System.out.print(json);
+				return;
+			    }
+			    try {
+				java.io.PrintStream out =
+				    new java.io.PrintStream(o.profile);
+				out.print(json);
+				out.close();
+			    } catch (IOException e) {
+				e.printStackTrace();
+			    }
+			}
+		    });
+		}
+
 		// exit on close
 		final ECUxPlot plot = new ECUxPlot("ECUxPlot", o.size, true, o.verbose);
 		final Application app = Application.getApplication();
@@ -882,6 +1319,16 @@ public class ECUxPlot extends ApplicationFrame implements SubActionListener, Fil
 		if(o.preset!=null)
 		    plot.loadPreset(o.preset);
 
+		if(o.exportDir!=null) {
+		    try {
+			for(String s : plot.exportData(o.exportDir))
+			    System.out.println(s);
+		    } catch (Exception e) {
+			e.printStackTrace();
+		    }
+		    if(o.output==null) System.exit(0);
+		}
+
 		if(o.output!=null) {
 		    try {
 			plot.pack();
@@ -1,5 +1,7 @@
 package org.nyet.ecuxplot;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.prefs.Preferences;
 
 import javax.swing.JOptionPane;
@@ -98,6 +100,39 @@ public class ECUxPreset extends Preset {
     public void ykeys(int which, Comparable<?>[] ykeys) { this.putArray(which==0?"ykeys0":"ykeys1", ykeys); }
     public void scatter(Boolean scatter) { this.prefs.putBoolean("scatter", scatter); }
 
+    // formulas the keys use (and the formulas those use), so the preset
+    // works where they haven't been defined
+    public void formulas(Formulas f) {
+	ArrayList<Comparable<?>> todo = new ArrayList<Comparable<?>>();
+	todo.add(this.xkey());
+	todo.addAll(Arrays.asList(this.ykeys(0)));
+	todo.addAll(Arrays.asList(this.ykeys(1)));
+	ArrayList<String> names = new ArrayList<String>();
+	ArrayList<String> out = new ArrayList<String>();
+	while(!todo.isEmpty()) {
+	    Formula fm = f.get(todo.remove(0).toString());
+	    if(fm==null || names.contains(fm.name)) continue;
+	    names.add(fm.name);
+	    out.add(fm.toString());
+	    todo.addAll(Arrays.asList(fm.columns()));
+	}
+	this.putArray("formulas", out.toArray(new String[0]));
+    }
+    // define the preset's formulas that aren't already. true if any were
+    public boolean restoreFormulas(Formulas f) {
+	boolean ret = false;
+	for(Comparable<?> def : this.getArray("formulas")) {
+	    String s = def.toString();
+	    int eq = s.indexOf('=');
+	    if(eq<0 || f.expr(s.substring(0, eq).trim())!=null) continue;
+	    try {
+		f.put(s);
+		ret = true;
+	    } catch (Exception e) {}
+	}
+	return ret;
+    }
+
     // misc
     public String toString() {
 	return this.prefs.name() + ": \"" +
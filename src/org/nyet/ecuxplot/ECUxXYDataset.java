@@ -0,0 +1,347 @@
+package org.nyet.ecuxplot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jfree.data.DomainInfo;
+import org.jfree.data.Range;
+import org.jfree.data.RangeInfo;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.jfree.data.xy.XYDomainInfo;
+import org.jfree.data.xy.XYRangeInfo;
+import org.jfree.util.PublicCloneable;
+
+import org.nyet.logfile.Dataset;
+
+// XY series like DefaultXYDataset, but indexed by key, and by ykey, so
+// finding, replacing and removing series don't walk all of them. Works
+// out the bounds of each series once, when it is added, so autorange
+// looks at one min/max per series instead of every point, every time
+// the chart changes.
+public class ECUxXYDataset extends AbstractXYDataset
+    implements DomainInfo, RangeInfo, XYDomainInfo, XYRangeInfo,
+	PublicCloneable {
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    private static final int XMIN=0, XMAX=1;
+    private static final int YMIN=2, YMAX=3;	// where x is a number too
+    private static final int YALLMIN=4, YALLMAX=5;
+
+    // by series index
+    @SuppressWarnings("rawtypes")
+    private ArrayList<Comparable> keys = new ArrayList<Comparable>();
+    private ArrayList<double[][]> data = new ArrayList<double[][]>();
+    private ArrayList<double[]> bounds = new ArrayList<double[]>();
+    // x column of a series straight from a log, null if it isn't (resampled)
+    private ArrayList<Comparable<?>> xkeys = new ArrayList<Comparable<?>>();
+
+    // key -> series index
+    @SuppressWarnings("rawtypes")
+    private HashMap<Comparable, Integer> index =
+	new HashMap<Comparable, Integer>();
+    // ykey -> how many series it has, in the order they were added
+    private LinkedHashMap<String, Integer> ykeys =
+	new LinkedHashMap<String, Integer>();
+
+    // the dataset this one is replacing, while it is filled in: its
+    // series that are added again unchanged keep their bounds
+    private ECUxXYDataset previous = null;
+
+    private boolean notify = true;
+    private boolean changed = false;
+
+    // null when done, so the old one can go
+    public void setPrevious(ECUxXYDataset previous) {
+	this.previous = previous;
+    }
+
+    private static double[] bounds(double[][] data) {
+	double[] b = new double[6];
+	java.util.Arrays.fill(b, Double.NaN);
+	for(int i=0;i<data[0].length;i++) {
+	    double x = data[0][i], y = data[1][i];
+	    if(!Double.isNaN(x)) {
+		if(!(x>=b[XMIN])) b[XMIN] = x;
+		if(!(x<=b[XMAX])) b[XMAX] = x;
+	    }
+	    if(Double.isNaN(y)) continue;
+	    if(!(y>=b[YALLMIN])) b[YALLMIN] = y;
+	    if(!(y<=b[YALLMAX])) b[YALLMAX] = y;
+	    if(Double.isNaN(x)) continue;
+	    if(!(y>=b[YMIN])) b[YMIN] = y;
+	    if(!(y<=b[YMAX])) b[YMAX] = y;
+	}
+	return b;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private double[] boundsOf(Comparable key, double[][] data) {
+	if(this.previous!=null) {
+	    Integer i = this.previous.index.get(key);
+	    if(i!=null && this.previous.data.get(i)==data)
+		return this.previous.bounds.get(i);
+	}
+	return bounds(data);
+    }
+
+    private static Range range(double[] b, int min) {
+	if(Double.isNaN(b[min])) return null;
+	return new Range(b[min], b[min+1]);
+    }
+
+    // what the series is of: the data column tag of a Key
+    @SuppressWarnings("rawtypes")
+    public static String ykey(Comparable key) {
+	if(key instanceof Dataset.Key) return ((Dataset.Key)key).getString();
+	return key.toString();
+    }
+
+    private void count(String ykey, int n) {
+	Integer c = this.ykeys.get(ykey);
+	int m = (c==null?0:c) + n;
+	if(m>0) this.ykeys.put(ykey, m);
+	else this.ykeys.remove(ykey);
+    }
+
+    /* batches of changes: one event at the end */
+    public void setNotify(boolean notify) {
+	this.notify = notify;
+	if(notify && this.changed) fireDatasetChanged();
+    }
+
+    protected void fireDatasetChanged() {
+	this.changed = true;
+	if(!this.notify) return;
+	this.changed = false;
+	super.fireDatasetChanged();
+    }
+
+    /* the series */
+    public int getSeriesCount() { return this.keys.size(); }
+
+    @SuppressWarnings("rawtypes")
+    public Comparable getSeriesKey(int series) {
+	if(series<0 || series>=this.keys.size())
+	    throw new IllegalArgumentException("Series index out of bounds");
+	return this.keys.get(series);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public int indexOf(Comparable key) {
+	Integer i = this.index.get(key);
+	return i==null?-1:i;
+    }
+
+    public int getItemCount(int series) {
+	return this.data.get(series)[0].length;
+    }
+    public double getXValue(int series, int item) {
+	return this.data.get(series)[0][item];
+    }
+    public double getYValue(int series, int item) {
+	return this.data.get(series)[1][item];
+    }
+    public Number getX(int series, int item) {
+	return Double.valueOf(getXValue(series, item));
+    }
+    public Number getY(int series, int item) {
+	return Double.valueOf(getYValue(series, item));
+    }
+
+    public Comparable<?> getXkey(int series) {
+	return this.xkeys.get(series);
+    }
+
+    // distinct ykeys, in the order they were first added
+    public String[] getYkeys() {
+	return this.ykeys.keySet().toArray(new String[0]);
+    }
+
+    // where ykey is in getYkeys(), or -1
+    public int ykeyIndex(String ykey) {
+	if(!this.ykeys.containsKey(ykey)) return -1;
+	int i = 0;
+	for(String k : this.ykeys.keySet()) {
+	    if(k.equals(ykey)) return i;
+	    i++;
+	}
+	return -1;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void addSeries(Comparable key, double[][] data) {
+	addSeries(key, data, null);
+    }
+
+    // add, or replace the series with the same key (in place). xkey: see
+    // getXkey()
+    @SuppressWarnings("rawtypes")
+    public void addSeries(Comparable key, double[][] data,
+	Comparable<?> xkey) {
+	if(key==null)
+	    throw new IllegalArgumentException("Null 'key' argument.");
+	if(data==null || data.length!=2 || data[0].length!=data[1].length)
+	    throw new IllegalArgumentException("Bad 'data' argument.");
+	Integer i = this.index.get(key);
+	if(i!=null) {
+	    // the key too: its filename/range may be shown differently now
+	    this.keys.set(i, key);
+	    this.xkeys.set(i, xkey);
+	    if(this.data.get(i)==data) return;
+	    this.data.set(i, data);
+	    this.bounds.set(i, boundsOf(key, data));
+	} else {
+	    this.index.put(key, this.keys.size());
+	    this.keys.add(key);
+	    this.xkeys.add(xkey);
+	    this.data.add(data);
+	    this.bounds.add(boundsOf(key, data));
+	    count(ykey(key), 1);
+	}
+	fireDatasetChanged();
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void removeSeries(Comparable key) {
+	Integer i = this.index.get(key);
+	if(i==null) return;
+	count(ykey(this.keys.get(i)), -1);
+	this.index.remove(key);
+	this.keys.remove((int)i);
+	this.xkeys.remove((int)i);
+	this.data.remove((int)i);
+	this.bounds.remove((int)i);
+	// series keep their order (paints go by index): the ones after it
+	// move down one
+	for(int j=i;j<this.keys.size();j++)
+	    this.index.put(this.keys.get(j), j);
+	fireDatasetChanged();
+    }
+
+    // every series of ykey, in one pass
+    public void removeYkey(String ykey) {
+	if(!this.ykeys.containsKey(ykey)) return;
+	int j = 0;
+	for(int i=0;i<this.keys.size();i++) {
+	    if(ykey(this.keys.get(i)).equals(ykey)) continue;
+	    this.keys.set(j, this.keys.get(i));
+	    this.xkeys.set(j, this.xkeys.get(i));
+	    this.data.set(j, this.data.get(i));
+	    this.bounds.set(j, this.bounds.get(i));
+	    j++;
+	}
+	truncate(j);
+	this.ykeys.remove(ykey);
+	reindex();
+	fireDatasetChanged();
+    }
+
+    public void removeAllSeries() {
+	if(this.keys.isEmpty()) return;
+	truncate(0);
+	this.index.clear();
+	this.ykeys.clear();
+	fireDatasetChanged();
+    }
+
+    private void truncate(int n) {
+	this.keys.subList(n, this.keys.size()).clear();
+	this.xkeys.subList(n, this.xkeys.size()).clear();
+	this.data.subList(n, this.data.size()).clear();
+	this.bounds.subList(n, this.bounds.size()).clear();
+    }
+
+    // after series have moved
+    private void reindex() {
+	this.index.clear();
+	for(int i=0;i<this.keys.size();i++)
+	    this.index.put(this.keys.get(i), i);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Object clone() throws CloneNotSupportedException {
+	ECUxXYDataset c = (ECUxXYDataset)super.clone();
+	c.keys = (ArrayList<Comparable>)this.keys.clone();
+	c.xkeys = (ArrayList<Comparable<?>>)this.xkeys.clone();
+	c.data = (ArrayList<double[][]>)this.data.clone();
+	c.bounds = (ArrayList<double[]>)this.bounds.clone();
+	c.index = (HashMap<Comparable, Integer>)this.index.clone();
+	c.ykeys = (LinkedHashMap<String, Integer>)this.ykeys.clone();
+	c.previous = null;
+	return c;
+    }
+
+    /* DomainInfo, RangeInfo: all series */
+    public Range getDomainBounds(boolean includeInterval) {
+	Range r = null;
+	for(double[] b : this.bounds) r = Range.combine(r, range(b, XMIN));
+	return r;
+    }
+    public double getDomainLowerBound(boolean includeInterval) {
+	Range r = getDomainBounds(includeInterval);
+	return r==null?Double.NaN:r.getLowerBound();
+    }
+    public double getDomainUpperBound(boolean includeInterval) {
+	Range r = getDomainBounds(includeInterval);
+	return r==null?Double.NaN:r.getUpperBound();
+    }
+
+    public Range getRangeBounds(boolean includeInterval) {
+	Range r = null;
+	for(double[] b : this.bounds) r = Range.combine(r, range(b, YALLMIN));
+	return r;
+    }
+    public double getRangeLowerBound(boolean includeInterval) {
+	Range r = getRangeBounds(includeInterval);
+	return r==null?Double.NaN:r.getLowerBound();
+    }
+    public double getRangeUpperBound(boolean includeInterval) {
+	Range r = getRangeBounds(includeInterval);
+	return r==null?Double.NaN:r.getUpperBound();
+    }
+
+    /* XYDomainInfo, XYRangeInfo: the visible series */
+    @SuppressWarnings("rawtypes")
+    public Range getDomainBounds(List visibleSeriesKeys,
+	boolean includeInterval) {
+	Range r = null;
+	for(Object k : visibleSeriesKeys) {
+	    int i = this.indexOf((Comparable)k);
+	    if(i>=0) r = Range.combine(r, range(this.bounds.get(i), XMIN));
+	}
+	return r;
+    }
+
+    // y of the points with x in xRange: the series' own bounds when all
+    // of it is in xRange (the usual), otherwise a walk of just that series
+    @SuppressWarnings("rawtypes")
+    public Range getRangeBounds(List visibleSeriesKeys, Range xRange,
+	boolean includeInterval) {
+	Range r = null;
+	for(Object k : visibleSeriesKeys) {
+	    int i = this.indexOf((Comparable)k);
+	    if(i<0) continue;
+	    double[] b = this.bounds.get(i);
+	    if(Double.isNaN(b[XMIN])) continue;
+	    if(xRange==null || (xRange.contains(b[XMIN]) &&
+		xRange.contains(b[XMAX]))) {
+		r = Range.combine(r, range(b, YMIN));
+		continue;
+	    }
+	    double[] x = this.data.get(i)[0], y = this.data.get(i)[1];
+	    double min = Double.NaN, max = Double.NaN;
+	    for(int j=0;j<x.length;j++) {
+		if(Double.isNaN(y[j]) || !xRange.contains(x[j])) continue;
+		if(!(y[j]>=min)) min = y[j];
+		if(!(y[j]<=max)) max = y[j];
+	    }
+	    if(!Double.isNaN(min)) r = Range.combine(r, new Range(min, max));
+	}
+	return r;
+    }
+}
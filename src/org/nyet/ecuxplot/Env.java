@@ -7,10 +7,93 @@ public class Env {
     public Fueling f;	// car profile
     public PID pid;
     public SAE sae;
+    public Formulas formulas;	// user defined channels
+
+    // Everything calculated columns read from c, f, pid and sae (and the
+    // formula definitions), as of one snapshot() call. Versions only go
+    // up, and only when something changed, so columns calculated with
+    // one version are good for as long as snapshot() returns it.
+    public static class Snapshot {
+	public final long version;
+	public final double mass, rpm_per_mph, Cd, FA, rolling_drag;
+	public final double static_loss, driveline_loss;
+	public final double MAF, MAF_correction, MAF_offset, injector;
+	public final int cylinders, turbos;
+	public final boolean sae;
+	public final double sae_correction;	// whether or not sae is on
+	public final double pid_time_constant, pid_P_deadband, pid_I_limit;
+	public final double pid_P, pid_I;
+	private final double[] pid_D;
+	private final String formulas;
+
+	private Snapshot(Env env, long version) {
+	    this.version = version;
+	    this.mass = env.c.mass();
+	    this.rpm_per_mph = env.c.rpm_per_mph();
+	    this.Cd = env.c.Cd();
+	    this.FA = env.c.FA();
+	    this.rolling_drag = env.c.rolling_drag();
+	    this.static_loss = env.c.static_loss();
+	    this.driveline_loss = env.c.driveline_loss();
+	    this.MAF = env.f.MAF();
+	    this.MAF_correction = env.f.MAF_correction();
+	    this.MAF_offset = env.f.MAF_offset();
+	    this.injector = env.f.injector();
+	    this.cylinders = env.f.cylinders();
+	    this.turbos = env.f.turbos();
+	    this.sae = env.sae.enabled();
+	    this.sae_correction = env.sae.correction();
+	    this.pid_time_constant = env.pid.time_constant;
+	    this.pid_P_deadband = env.pid.P_deadband;
+	    this.pid_I_limit = env.pid.I_limit;
+	    this.pid_P = env.pid.P;
+	    this.pid_I = env.pid.I;
+	    this.pid_D = env.pid.D.clone();
+	    StringBuilder b = new StringBuilder();
+	    for(String name : env.formulas.names())
+		b.append(name).append('=').append(env.formulas.expr(name))
+		    .append('\n');
+	    this.formulas = b.toString();
+	}
+
+	public double pid_D(int i) { return this.pid_D[i]; }
+
+	private boolean same(Snapshot s) {
+	    return s.mass==mass && s.rpm_per_mph==rpm_per_mph && s.Cd==Cd &&
+		s.FA==FA && s.rolling_drag==rolling_drag &&
+		s.static_loss==static_loss &&
+		s.driveline_loss==driveline_loss && s.MAF==MAF &&
+		s.MAF_correction==MAF_correction &&
+		s.MAF_offset==MAF_offset && s.injector==injector &&
+		s.cylinders==cylinders && s.turbos==turbos && s.sae==sae &&
+		s.sae_correction==sae_correction &&
+		s.pid_time_constant==pid_time_constant &&
+		s.pid_P_deadband==pid_P_deadband &&
+		s.pid_I_limit==pid_I_limit && s.pid_P==pid_P &&
+		s.pid_I==pid_I && java.util.Arrays.equals(s.pid_D, pid_D) &&
+		s.formulas.equals(formulas);
+	}
+    }
+
+    private static long versions = 0;
+    private Snapshot snapshot = null;
+
     public Env (Preferences prefs) {
 	this.f = new Fueling(prefs);
 	this.c = new Constants(prefs);
 	this.pid = new PID(prefs);
 	this.sae = new SAE(prefs);
+	this.formulas = new Formulas(prefs);
+    }
+
+    public Snapshot snapshot() {
+	synchronized(Env.class) {
+	    Snapshot s = new Snapshot(this, versions+1);
+	    if(this.snapshot==null || !this.snapshot.same(s)) {
+		versions++;
+		this.snapshot = s;
+	    }
+	    return this.snapshot;
+	}
     }
 }
@@ -29,6 +29,14 @@ public final class FileMenu extends JMenu {
 	item.addActionListener(listener);
 	this.add(item);
 
+	item = new JMenuItem("Merge File...");
+	item.addActionListener(listener);
+	this.add(item);
+
+	item = new JMenuItem("Aggregate Files...");
+	item.addActionListener(listener);
+	this.add(item);
+
 	this.add(new JSeparator());
 
 	item = new JMenuItem("New Chart");
@@ -63,6 +71,10 @@ public final class FileMenu extends JMenu {
 	item.addActionListener(listener);
 	this.add(item);
 
+	item = new JMenuItem("Export Data");
+	item.addActionListener(listener);
+	this.add(item);
+
 	this.add(new JSeparator());
 
 	item = new JMenuItem("Quit");
@@ -21,10 +21,62 @@ public class Filter {
 
     private Preferences prefs;
 
+    // The settings as of one snapshot() call. Every getter below is a
+    // Preferences lookup, too slow for per row tests; take a snapshot
+    // once per pass instead. Versions only go up, and only when a
+    // setting actually changed, so they make a cheap cache key.
+    public static class Snapshot {
+	public final long version;
+	public final boolean enabled;
+	public final boolean monotonicRPM;
+	public final int monotonicRPMfuzz, minRPM, maxRPM, minRPMRange;
+	public final int minPedal, minThrottle, gear, minPoints;
+	public final int HPTQMAW, ZeitMAW;
+
+	private Snapshot(Filter f, long version) {
+	    this.version = version;
+	    this.enabled = f.enabled();
+	    this.monotonicRPM = f.monotonicRPM();
+	    this.monotonicRPMfuzz = f.monotonicRPMfuzz();
+	    this.minRPM = f.minRPM();
+	    this.maxRPM = f.maxRPM();
+	    this.minRPMRange = f.minRPMRange();
+	    this.minPedal = f.minPedal();
+	    this.minThrottle = f.minThrottle();
+	    this.gear = f.gear();
+	    this.minPoints = f.minPoints();
+	    this.HPTQMAW = f.HPTQMAW();
+	    this.ZeitMAW = f.ZeitMAW();
+	}
+
+	private boolean same(Snapshot s) {
+	    return s.enabled==enabled && s.monotonicRPM==monotonicRPM &&
+		s.monotonicRPMfuzz==monotonicRPMfuzz && s.minRPM==minRPM &&
+		s.maxRPM==maxRPM && s.minRPMRange==minRPMRange &&
+		s.minPedal==minPedal && s.minThrottle==minThrottle &&
+		s.gear==gear && s.minPoints==minPoints &&
+		s.HPTQMAW==HPTQMAW && s.ZeitMAW==ZeitMAW;
+	}
+    }
+
+    private static long versions = 0;
+    private Snapshot snapshot = null;
+
     public Filter (Preferences prefs) {
 	this.prefs = prefs.node(PREFS_TAG);
     }
 
+    public Snapshot snapshot() {
+	synchronized(Filter.class) {
+	    Snapshot s = new Snapshot(this, versions+1);
+	    if(this.snapshot==null || !this.snapshot.same(s)) {
+		versions++;
+		this.snapshot = s;
+	    }
+	    return this.snapshot;
+	}
+    }
+
     public static boolean enabled(Preferences prefs) {
 	return prefs.node(PREFS_TAG).getBoolean("enabled", defaultEnabled);
     }
@@ -37,6 +89,9 @@ public class Filter {
     }
 
     public int currentRange = 0;
+    // the file currentRange is of (from the range index), or null for
+    // that range of every file
+    public String currentFile = null;
 
     public static boolean showAllRanges(Preferences prefs) {
     return prefs.node(PREFS_TAG).getBoolean("showAllRanges", defaultShowAllRanges);
@@ -0,0 +1,376 @@
+package org.nyet.ecuxplot;
+
+import java.util.ArrayList;
+
+import org.nyet.logfile.Dataset;
+import org.nyet.util.DoubleArray;
+
+/*
+ A user defined channel: an expression over other columns and Env
+ constants, e.g.
+
+   Calc Load2 (%) = MassAirFlow*3.6/RPM/0.001072
+
+ Columns are bare names, or [bracketed] if they have spaces etc in them
+ ([Calc WHP]). Env constants are c.mass, c.rpm_per_mph, c.Cd, c.FA,
+ c.rolling_drag, c.static_loss, c.driveline_loss, f.MAF,
+ f.MAF_correction, f.injector, f.MAF_offset, f.cylinders, f.turbos and
+ sae.correction. Operators are
+ + - * / ^ and unary -, functions abs sqrt exp log log10 min max pow.
+
+ The expression is parsed once into a tree. Each evaluation folds the
+ constants of an Env.Snapshot into a copy of it, then runs the whole
+ tree over BLOCK samples at a time, so every node is one tight loop per
+ block and the only full length array allocated is the result.
+*/
+public class Formula {
+    private static final int BLOCK = 256;
+
+    public final String name;
+    public final String expr;
+    public final String units;	// from a trailing "(units)" in the name
+    private final Node root;
+    private final ArrayList<String> columns = new ArrayList<String>();
+
+    /* tree. the parsed tree is shared; bind() makes a private copy */
+    private abstract class Node {
+	int slot;	// scratch buffer for this node's block
+	abstract Node bind(Env.Snapshot env);
+	// number this subtree's scratch buffers from next, return the next free
+	int number(int next) { slot = next; return next+1; }
+	// out = this node over rows off..off+len of the columns in in
+	abstract void eval(DoubleArray[] in, int off, int len, double[][] scratch);
+	boolean isConst() { return false; }
+	double value() { return 0; }
+    }
+
+    private class Const extends Node {
+	final double v;
+	Const(double v) { this.v = v; }
+	Node bind(Env.Snapshot env) { return this; }
+	void eval(DoubleArray[] in, int off, int len, double[][] scratch) {
+	    java.util.Arrays.fill(scratch[slot], 0, len, v);
+	}
+	boolean isConst() { return true; }
+	double value() { return v; }
+    }
+
+    private class EnvConst extends Node {
+	final String id;
+	EnvConst(String id) { this.id = id; }
+	Node bind(Env.Snapshot env) { return new Const(envValue(env, id)); }
+	void eval(DoubleArray[] in, int off, int len, double[][] scratch) {
+	    throw new IllegalStateException("unbound " + id);
+	}
+    }
+
+    private class Ref extends Node {
+	final int col;
+	Ref(int col) { this.col = col; }
+	Node bind(Env.Snapshot env) { return this; }
+	void eval(DoubleArray[] in, int off, int len, double[][] scratch) {
+	    in[col].toArray(off, off+len-1, scratch[slot]);
+	}
+    }
+
+    private static final int NEG=0, ABS=1, SQRT=2, EXP=3, LOG=4, LOG10=5;
+    private static final String[] UNARY = {null, "abs", "sqrt", "exp", "log", "log10"};
+
+    private class Unary extends Node {
+	final int op;
+	final Node a;
+	Unary(int op, Node a) { this.op = op; this.a = a; }
+	Node bind(Env.Snapshot env) {
+	    Node x = a.bind(env);
+	    if(x.isConst()) return new Const(f(x.value()));
+	    return new Unary(op, x);
+	}
+	int number(int next) { return super.number(a.number(next)); }
+	double f(double x) {
+	    switch(op) {
+		case NEG: return -x;
+		case ABS: return Math.abs(x);
+		case SQRT: return Math.sqrt(x);
+		case EXP: return Math.exp(x);
+		case LOG: return Math.log(x);
+		default: return Math.log10(x);
+	    }
+	}
+	void eval(DoubleArray[] in, int off, int len, double[][] scratch) {
+	    a.eval(in, off, len, scratch);
+	    double[] x = scratch[a.slot], out = scratch[slot];
+	    switch(op) {
+		case NEG: for(int i=0;i<len;i++) out[i] = -x[i]; break;
+		case ABS: for(int i=0;i<len;i++) out[i] = Math.abs(x[i]); break;
+		default: for(int i=0;i<len;i++) out[i] = f(x[i]); break;
+	    }
+	}
+    }
+
+    private static final int ADD=0, SUB=1, MUL=2, DIV=3, POW=4, MIN=5, MAX=6;
+
+    private class Binary extends Node {
+	final int op;
+	final Node a, b;
+	Binary(int op, Node a, Node b) { this.op = op; this.a = a; this.b = b; }
+	Node bind(Env.Snapshot env) {
+	    Node x = a.bind(env), y = b.bind(env);
+	    if(x.isConst() && y.isConst()) return new Const(f(x.value(), y.value()));
+	    return new Binary(op, x, y);
+	}
+	int number(int next) { return super.number(b.number(a.number(next))); }
+	double f(double x, double y) {
+	    switch(op) {
+		case ADD: return x+y;
+		case SUB: return x-y;
+		case MUL: return x*y;
+		case DIV: return x/y;
+		case POW: return Math.pow(x, y);
+		case MIN: return Math.min(x, y);
+		default: return Math.max(x, y);
+	    }
+	}
+	void eval(DoubleArray[] in, int off, int len, double[][] scratch) {
+	    double[] out = scratch[slot];
+	    // the usual "column op constant" needs no buffer for the constant
+	    if(b.isConst()) {
+		a.eval(in, off, len, scratch);
+		double[] x = scratch[a.slot];
+		double y = b.value();
+		switch(op) {
+		    case ADD: for(int i=0;i<len;i++) out[i] = x[i]+y; break;
+		    case SUB: for(int i=0;i<len;i++) out[i] = x[i]-y; break;
+		    case MUL: for(int i=0;i<len;i++) out[i] = x[i]*y; break;
+		    case DIV: for(int i=0;i<len;i++) out[i] = x[i]/y; break;
+		    default: for(int i=0;i<len;i++) out[i] = f(x[i], y); break;
+		}
+		return;
+	    }
+	    b.eval(in, off, len, scratch);
+	    double[] y = scratch[b.slot];
+	    if(a.isConst()) {
+		double x = a.value();
+		switch(op) {
+		    case ADD: for(int i=0;i<len;i++) out[i] = x+y[i]; break;
+		    case MUL: for(int i=0;i<len;i++) out[i] = x*y[i]; break;
+		    default: for(int i=0;i<len;i++) out[i] = f(x, y[i]); break;
+		}
+		return;
+	    }
+	    a.eval(in, off, len, scratch);
+	    double[] x = scratch[a.slot];
+	    switch(op) {
+		case ADD: for(int i=0;i<len;i++) out[i] = x[i]+y[i]; break;
+		case SUB: for(int i=0;i<len;i++) out[i] = x[i]-y[i]; break;
+		case MUL: for(int i=0;i<len;i++) out[i] = x[i]*y[i]; break;
+		case DIV: for(int i=0;i<len;i++) out[i] = x[i]/y[i]; break;
+		default: for(int i=0;i<len;i++) out[i] = f(x[i], y[i]); break;
+	    }
+	}
+    }
+
+    public static final String[] ENV = {
+	"c.mass", "c.rpm_per_mph", "c.Cd", "c.FA", "c.rolling_drag",
+	"c.static_loss", "c.driveline_loss", "f.MAF", "f.injector",
+	"f.MAF_correction", "f.MAF_offset", "f.cylinders", "f.turbos",
+	"sae.correction"
+    };
+
+    private static double envValue(Env.Snapshot env, String id) {
+	if(id.equals("c.mass")) return env.mass;
+	if(id.equals("c.rpm_per_mph")) return env.rpm_per_mph;
+	if(id.equals("c.Cd")) return env.Cd;
+	if(id.equals("c.FA")) return env.FA;
+	if(id.equals("c.rolling_drag")) return env.rolling_drag;
+	if(id.equals("c.static_loss")) return env.static_loss;
+	if(id.equals("c.driveline_loss")) return env.driveline_loss;
+	if(id.equals("f.MAF")) return env.MAF;
+	if(id.equals("f.injector")) return env.injector;
+	if(id.equals("f.MAF_correction")) return env.MAF_correction;
+	if(id.equals("f.MAF_offset")) return env.MAF_offset;
+	if(id.equals("f.cylinders")) return env.cylinders;
+	if(id.equals("f.turbos")) return env.turbos;
+	if(id.equals("sae.correction")) return env.sae_correction;
+	return Double.NaN;
+    }
+
+    private static boolean isEnvConst(String id) {
+	for(String e : ENV) if(e.equals(id)) return true;
+	return false;
+    }
+
+    /* parser */
+    private int pos = 0;
+
+    private Exception error(String what) {
+	return new Exception(this.name + ": " + what + " at " + (pos+1) +
+	    " in \"" + this.expr + "\"");
+    }
+
+    private void skip() {
+	while(pos<expr.length() && Character.isWhitespace(expr.charAt(pos))) pos++;
+    }
+
+    private boolean eat(char c) {
+	skip();
+	if(pos<expr.length() && expr.charAt(pos)==c) {
+	    pos++;
+	    return true;
+	}
+	return false;
+    }
+
+    // sum := product (('+'|'-') product)*
+    private Node sum() throws Exception {
+	Node n = product();
+	for(;;) {
+	    if(eat('+')) n = new Binary(ADD, n, product());
+	    else if(eat('-')) n = new Binary(SUB, n, product());
+	    else return n;
+	}
+    }
+
+    // product := unary (('*'|'/') unary)*
+    private Node product() throws Exception {
+	Node n = unary();
+	for(;;) {
+	    if(eat('*')) n = new Binary(MUL, n, unary());
+	    else if(eat('/')) n = new Binary(DIV, n, unary());
+	    else return n;
+	}
+    }
+
+    // unary := '-' unary | power
+    private Node unary() throws Exception {
+	if(eat('-')) return new Unary(NEG, unary());
+	if(eat('+')) return unary();
+	return power();
+    }
+
+    // power := atom ('^' unary)?	right associative
+    private Node power() throws Exception {
+	Node n = atom();
+	if(eat('^')) n = new Binary(POW, n, unary());
+	return n;
+    }
+
+    private Node atom() throws Exception {
+	skip();
+	if(pos>=expr.length()) throw error("unexpected end");
+	char c = expr.charAt(pos);
+	if(c=='(') {
+	    pos++;
+	    Node n = sum();
+	    if(!eat(')')) throw error("expected )");
+	    return n;
+	}
+	if(c=='[') {
+	    int end = expr.indexOf(']', pos);
+	    if(end<0) throw error("expected ]");
+	    String id = expr.substring(pos+1, end).trim();
+	    pos = end+1;
+	    return ref(id);
+	}
+	if(Character.isDigit(c) || c=='.') {
+	    int start = pos;
+	    while(pos<expr.length() &&
+		(Character.isDigit(expr.charAt(pos)) || expr.charAt(pos)=='.')) pos++;
+	    if(pos<expr.length() && (expr.charAt(pos)=='e' || expr.charAt(pos)=='E')) {
+		pos++;
+		if(pos<expr.length() && (expr.charAt(pos)=='-' || expr.charAt(pos)=='+')) pos++;
+		while(pos<expr.length() && Character.isDigit(expr.charAt(pos))) pos++;
+	    }
+	    try {
+		return new Const(Double.parseDouble(expr.substring(start, pos)));
+	    } catch (NumberFormatException e) {
+		pos = start;
+		throw error("bad number");
+	    }
+	}
+	if(Character.isLetter(c) || c=='_') {
+	    int start = pos;
+	    while(pos<expr.length() && (Character.isLetterOrDigit(expr.charAt(pos)) ||
+		expr.charAt(pos)=='_' || expr.charAt(pos)=='.')) pos++;
+	    String id = expr.substring(start, pos);
+	    if(eat('(')) return function(id);
+	    if(isEnvConst(id)) return new EnvConst(id);
+	    return ref(id);
+	}
+	throw error("unexpected '" + c + "'");
+    }
+
+    private Node function(String fn) throws Exception {
+	ArrayList<Node> args = new ArrayList<Node>();
+	if(!eat(')')) {
+	    do { args.add(sum()); } while(eat(','));
+	    if(!eat(')')) throw error("expected )");
+	}
+	for(int op=ABS;op<UNARY.length;op++) {
+	    if(!fn.equals(UNARY[op])) continue;
+	    if(args.size()!=1) throw error(fn + "() takes 1 argument");
+	    return new Unary(op, args.get(0));
+	}
+	int op = fn.equals("pow")?POW:fn.equals("min")?MIN:fn.equals("max")?MAX:-1;
+	if(op<0) throw error("unknown function " + fn + "()");
+	if(args.size()!=2) throw error(fn + "() takes 2 arguments");
+	return new Binary(op, args.get(0), args.get(1));
+    }
+
+    private Node ref(String id) throws Exception {
+	if(id.length()==0) throw error("empty column name");
+	int i = this.columns.indexOf(id);
+	if(i<0) {
+	    i = this.columns.size();
+	    this.columns.add(id);
+	}
+	return new Ref(i);
+    }
+
+    public Formula(String name, String expr) throws Exception {
+	this.name = name.trim();
+	this.expr = expr.trim();
+	if(this.name.length()==0) throw new Exception("formula has no name");
+	String u = "";
+	if(this.name.matches(".*\\(.+\\)$"))
+	    u = this.name.substring(this.name.lastIndexOf('(')+1,
+		this.name.length()-1);
+	this.units = u;
+	this.root = sum();
+	skip();
+	if(pos<this.expr.length()) throw error("unexpected '" +
+	    this.expr.charAt(pos) + "'");
+	if(this.columns.contains(this.name))
+	    throw new Exception(this.name + ": refers to itself");
+    }
+
+    // columns this formula reads
+    public String[] columns() { return this.columns.toArray(new String[0]); }
+
+    // null if any column is missing from d
+    public Dataset.Column column(ECUxDataset d, Env.Snapshot env) {
+	// read a block at a time, as they are (packed, virtual...)
+	DoubleArray[] in = new DoubleArray[this.columns.size()];
+	int n = -1;
+	for(int i=0;i<in.length;i++) {
+	    Dataset.Column c = d.get(this.columns.get(i));
+	    if(c==null) return null;
+	    in[i] = c.data;
+	    n = (n<0)?in[i].size():Math.min(n, in[i].size());
+	}
+	if(n<0) n = d.get("TIME")!=null?d.get("TIME").data.size():0;
+
+	// Env constants may have changed since the last time
+	Node r = this.root.bind(env);
+	double[][] scratch = new double[r.number(0)][BLOCK];
+	double[] out = new double[n];
+	for(int off=0;off<n;off+=BLOCK) {
+	    int len = Math.min(BLOCK, n-off);
+	    r.eval(in, off, len, scratch);
+	    System.arraycopy(scratch[r.slot], 0, out, off, len);
+	}
+	// missing wherever a column it reads is
+	return d.new Column(this.name, this.units, DoubleArray.masked(out, in));
+    }
+
+    public String toString() { return this.name + " = " + this.expr; }
+}
@@ -0,0 +1,70 @@
+package org.nyet.ecuxplot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.prefs.Preferences;
+
+// user defined channels, name -> expression, compiled on first use
+public class Formulas {
+    public static final String PREFS_TAG = "formulas";
+
+    private Preferences prefs;
+    private HashMap<String, Formula> compiled = new HashMap<String, Formula>();
+
+    public Formulas(Preferences prefs) {
+	this.prefs = prefs.node(PREFS_TAG);
+    }
+
+    public String[] names() {
+	try { return this.prefs.keys();
+	} catch (Exception e) { return new String[0]; }
+    }
+
+    public String expr(String name) { return this.prefs.get(name, null); }
+
+    // null if name isn't a formula, or doesn't compile
+    public synchronized Formula get(String name) {
+	String expr = this.expr(name);
+	if(expr==null) return null;
+	Formula f = this.compiled.get(name);
+	if(f!=null && f.expr.equals(expr)) return f;
+	try {
+	    f = new Formula(name, expr);
+	} catch (Exception e) {
+	    return null;
+	}
+	this.compiled.put(name, f);
+	return f;
+    }
+
+    private boolean reaches(String from, String to, HashSet<String> seen) {
+	if(from.equals(to)) return true;
+	if(!seen.add(from)) return false;
+	Formula f = this.get(from);
+	if(f==null) return false;
+	for(String c : f.columns())
+	    if(reaches(c, to, seen)) return true;
+	return false;
+    }
+
+    // throws if expr doesn't compile, or makes a loop of formulas
+    public void put(String name, String expr) throws Exception {
+	Formula f = new Formula(name, expr);
+	for(String c : f.columns())
+	    if(reaches(c, f.name, new HashSet<String>()))
+		throw new Exception(f.name + ": " + c + " refers back to it");
+	this.prefs.put(f.name, f.expr);
+    }
+
+    // "name = expr"; "name =" removes name
+    public void put(String def) throws Exception {
+	int eq = def.indexOf('=');
+	if(eq<0) throw new Exception("expected name = expression: " + def);
+	String name = def.substring(0, eq).trim();
+	String expr = def.substring(eq+1).trim();
+	if(expr.length()==0) this.remove(name);
+	else this.put(name, expr);
+    }
+
+    public void remove(String name) { this.prefs.remove(name); }
+}
@@ -19,7 +19,11 @@ public final class HelpMenu extends JMenu {
 	item.addActionListener(listener);
 	this.add(item);
 	*/
-	JMenuItem item = new JMenuItem("About...");
+	JMenuItem item = new JMenuItem("Diagnostics...");
+	item.addActionListener(listener);
+	this.add(item);
+
+	item = new JMenuItem("About...");
 	item.addActionListener(listener);
 	this.add(item);
     }
@@ -0,0 +1,151 @@
+package org.nyet.ecuxplot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.nyet.logfile.Dataset;
+import org.nyet.util.DoubleArray;
+
+// Merge the columns of a second logger (e.g. Zeitronix) into an ECU log
+// (e.g. ME7Logger) recorded at the same time, on the ECU log's clock.
+public class Merge {
+    public static final int ALIGN_TIME = 0;	// line up the first samples
+    public static final int ALIGN_RPM = 1;	// cross-correlate RPM
+    public static final int INTERP_LINEAR = 0;
+    public static final int INTERP_SPLINE = 1;	// catmull-rom
+
+    private static final double RATE = 10;	// Hz, RPM correlation grid
+    private static final double MAX_LAG = 60;	// seconds, either way
+    private static final double MIN_OVERLAP = 10;	// seconds
+
+    public double offset = 0;	// add to "from" times to get "into" times
+    public double correlation = Double.NaN;	// of RPM at offset, if used
+    public ArrayList<String> merged = new ArrayList<String>();
+
+    private static double[] time(ECUxDataset d) throws Exception {
+	Dataset.Column c = d.get("TIME");
+	if(c==null) c = d.get("Zeitronix Time");
+	if(c==null)
+	    throw new Exception(d.getFileId() + ": no TIME column to merge on");
+	return c.data.toArray();
+    }
+
+    // v sampled at t0 + k/RATE for as long as t lasts. t is increasing.
+    private static double[] grid(double[] t, double[] v) {
+	int n = (int)Math.floor((t[t.length-1]-t[0])*RATE)+1;
+	double[] out = new double[n];
+	int j=0;
+	for(int k=0;k<n;k++) {
+	    double x = t[0] + k/RATE;
+	    while(j<t.length-2 && t[j+1]<x) j++;
+	    double dt = t[j+1]-t[j];
+	    double f = (dt>0)?(x-t[j])/dt:0;
+	    out[k] = v[j] + (v[j+1]-v[j])*Math.max(0, Math.min(1, f));
+	}
+	return out;
+    }
+
+    // lag (in grid samples) of b vs a with the best pearson correlation.
+    // lags are bounded, so this is linear in the length of the logs.
+    private double bestLag(double[] a, double[] b) {
+	int maxLag = (int)(MAX_LAG*RATE);
+	int minOverlap = (int)(MIN_OVERLAP*RATE);
+	int best = 0;
+	double bestR = Double.NEGATIVE_INFINITY;
+	for(int lag=-maxLag; lag<=maxLag; lag++) {
+	    // b[k] lines up with a[k+lag]
+	    int k0 = Math.max(0, -lag);
+	    int k1 = Math.min(b.length, a.length-lag);
+	    int n = k1-k0;
+	    if(n<minOverlap) continue;
+	    double sa=0, sb=0, saa=0, sbb=0, sab=0;
+	    for(int k=k0;k<k1;k++) {
+		double x=a[k+lag], y=b[k];
+		sa+=x; sb+=y; saa+=x*x; sbb+=y*y; sab+=x*y;
+	    }
+	    double cov = sab-sa*sb/n;
+	    double var = (saa-sa*sa/n)*(sbb-sb*sb/n);
+	    if(var<=0) continue;
+	    double r = cov/Math.sqrt(var);
+	    if(r>bestR) {
+		bestR = r;
+		best = lag;
+	    }
+	}
+	this.correlation = bestR;
+	return best;
+    }
+
+    private static double interpolate(double[] v, int j, double f, int interp) {
+	if(interp==INTERP_SPLINE) {
+	    double p0=v[Math.max(j-1,0)], p1=v[j], p2=v[j+1];
+	    double p3=v[Math.min(j+2,v.length-1)];
+	    return 0.5*((2*p1) + (-p0+p2)*f + (2*p0-5*p1+4*p2-p3)*f*f +
+		(-p0+3*p1-3*p2+p3)*f*f*f);
+	}
+	return v[j] + (v[j+1]-v[j])*f;
+    }
+
+    // add every column of "from" that "into" doesn't already have to
+    // "into", sampled at its rows. rows outside "from" get NaN.
+    public Merge(ECUxDataset into, ECUxDataset from, int align, int interp)
+	throws Exception {
+	double[] ta = time(into);
+	double[] tb = time(from);
+	if(ta.length<2 || tb.length<2)
+	    throw new Exception("not enough samples to merge");
+
+	this.offset = ta[0]-tb[0];
+	if(align==ALIGN_RPM) {
+	    Dataset.Column ra = into.get("RPM");
+	    Dataset.Column rb = from.get("RPM");
+	    if(ra==null || rb==null)
+		throw new Exception("both logs need RPM to align on RPM");
+	    double lag = bestLag(grid(ta, ra.data.toArray()),
+		grid(tb, rb.data.toArray()));
+	    this.offset += lag/RATE;
+	}
+
+	// one pass over both clocks: where each row lands in "from"
+	int[] pos = new int[ta.length];
+	double[] frac = new double[ta.length];
+	int j=0;
+	for(int i=0;i<ta.length;i++) {
+	    double t = ta[i]-this.offset;
+	    if(t<tb[0] || t>tb[tb.length-1]) {
+		pos[i] = -1;
+		continue;
+	    }
+	    while(j<tb.length-2 && tb[j+1]<t) j++;
+	    double dt = tb[j+1]-tb[j];
+	    pos[i] = j;
+	    frac[i] = (dt>0)?Math.max(0, Math.min(1, (t-tb[j])/dt)):0;
+	}
+
+	ArrayList<Dataset.DatasetId> ids = new ArrayList<Dataset.DatasetId>(
+	    Arrays.asList(into.getIds()));
+	// snapshot: into.get() below may add calculated columns
+	ArrayList<Dataset.Column> columns =
+	    new ArrayList<Dataset.Column>(from.getColumns());
+	for(Dataset.Column c : columns) {
+	    String id = c.getId();
+	    if(id==null || id.length()==0 || id.equals("TIME") ||
+		id.equals("Zeitronix Time")) continue;
+	    if(into.get(id)!=null || this.merged.contains(id)) continue;
+	    if(c.data.size()!=tb.length) continue;
+
+	    double[] v = c.data.toArray();
+	    double[] out = new double[ta.length];
+	    for(int i=0;i<ta.length;i++)
+		out[i] = (pos[i]<0)?Double.NaN:
+		    interpolate(v, pos[i], frac[i], interp);
+
+	    Dataset.Column m = into.new Column(id, c.getId2(), c.getUnits(),
+		new DoubleArray(out));
+	    into.getColumns().add(m);
+	    ids.add(new Dataset.DatasetId(id, c.getId2(), c.getUnits()));
+	    this.merged.add(id);
+	}
+	into.setIds(ids.toArray(new Dataset.DatasetId[0]));
+    }
+}
@@ -59,6 +59,23 @@ public final class OptionsMenu extends JMenu {
 	jcb.addActionListener(plotFrame);
 	this.add(jcb);
 
+	jcb = new JCheckBox("Resample to RPM grid",
+		ECUxPlot.resample(prefs)>0);
+	jcb.addActionListener(plotFrame);
+	this.add(jcb);
+
+	jcb = new JCheckBox("Render in background", ECUxPlot.background(prefs));
+	jcb.addActionListener(plotFrame);
+	this.add(jcb);
+
+	jcb = new JCheckBox("Compact storage", ECUxPlot.compact(prefs));
+	jcb.addActionListener(plotFrame);
+	this.add(jcb);
+
+	jcb = new JCheckBox("Merge with spline", ECUxPlot.mergeSpline(prefs));
+	jcb.addActionListener(plotFrame);
+	this.add(jcb);
+
 	this.add(new JSeparator());
 	jcb = new JCheckBox("Filter data", Filter.enabled(prefs));
 	jcb.addActionListener(plotFrame);
@@ -72,6 +89,9 @@ public final class OptionsMenu extends JMenu {
 	jmi = new JMenuItem("Previous range...");
 	jmi.addActionListener(plotFrame);
 	this.add(jmi);
+	jmi = new JMenuItem("Range index...");
+	jmi.addActionListener(plotFrame);
+	this.add(jmi);
 	this.add(new JSeparator());
 
 	jcb = new JCheckBox("Apply SAE", SAE.enabled(prefs));
@@ -95,6 +115,10 @@ public final class OptionsMenu extends JMenu {
 	jmi = new JMenuItem("Edit PID...");
 	jmi.addActionListener(plotFrame);
 	this.add(jmi);
+
+	jmi = new JMenuItem("Edit formulas...");
+	jmi.addActionListener(plotFrame);
+	this.add(jmi);
     }
 
     private void updatePresets() {
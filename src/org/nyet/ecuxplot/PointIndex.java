@@ -0,0 +1,120 @@
+package org.nyet.ecuxplot;
+
+import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
+
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+import org.jfree.data.xy.XYDataset;
+import org.jfree.ui.RectangleEdge;
+
+// Nearest point lookup over what an XYPlot shows, in java2D coordinates.
+// Only points inside the data area are kept, at most one per pixel, in a
+// grid of CELL pixel squares. Build one per view (zoom, size, datasets);
+// a lookup only looks at the cells within its radius.
+public class PointIndex {
+    public static final int CELL = 16;
+
+    public static class Hit {
+	public int dataset, series, item;
+	public double distance;
+	private Hit(int d, int s, int i, double dist) {
+	    this.dataset = d; this.series = s; this.item = i; this.distance = dist;
+	}
+    }
+
+    private Rectangle2D area;
+    private int cols, rows;
+    private int[] cellStart;	// points of cell c are [cellStart[c], cellStart[c+1])
+    private float[] px, py;
+    private int[] dataset, series, item;
+
+    public PointIndex(XYPlot plot, Rectangle2D area) {
+	this.area = area;
+	int w = (int)Math.ceil(area.getWidth())+1;
+	int h = (int)Math.ceil(area.getHeight())+1;
+	this.cols = w/CELL+1;
+	this.rows = h/CELL+1;
+
+	int total = 0;
+	for(int d=0;d<plot.getDatasetCount();d++) {
+	    XYDataset ds = plot.getDataset(d);
+	    if(ds==null) continue;
+	    for(int s=0;s<ds.getSeriesCount();s++) total += ds.getItemCount(s);
+	}
+
+	// visible points, one per pixel
+	float[] x = new float[total], y = new float[total];
+	int[] d0 = new int[total], s0 = new int[total], i0 = new int[total];
+	int[] cell = new int[total];
+	int[] count = new int[this.cols*this.rows+1];
+	BitSet taken = new BitSet(w*h);
+	int n = 0;
+	ValueAxis xa = plot.getDomainAxis();
+	RectangleEdge xe = plot.getDomainAxisEdge();
+	for(int d=0;d<plot.getDatasetCount();d++) {
+	    XYDataset ds = plot.getDataset(d);
+	    ValueAxis ya = plot.getRangeAxisForDataset(d);
+	    if(ds==null || ya==null) continue;
+	    RectangleEdge ye = plot.getRangeAxisEdge(plot.getRangeAxisIndex(ya));
+	    XYItemRenderer r = plot.getRenderer(d);
+	    for(int s=0;s<ds.getSeriesCount();s++) {
+		if(r!=null && !r.isSeriesVisible(s)) continue;
+		for(int i=0;i<ds.getItemCount(s);i++) {
+		    double jx = xa.valueToJava2D(ds.getXValue(s, i), area, xe);
+		    double jy = ya.valueToJava2D(ds.getYValue(s, i), area, ye);
+		    if(!area.contains(jx, jy)) continue;	// also NaN
+		    int ix = (int)(jx-area.getX()), iy = (int)(jy-area.getY());
+		    if(taken.get(iy*w+ix)) continue;
+		    taken.set(iy*w+ix);
+		    x[n] = (float)jx; y[n] = (float)jy;
+		    d0[n] = d; s0[n] = s; i0[n] = i;
+		    cell[n] = (iy/CELL)*this.cols + ix/CELL;
+		    count[cell[n]+1]++;
+		    n++;
+		}
+	    }
+	}
+
+	// counting sort by cell
+	for(int c=1;c<count.length;c++) count[c] += count[c-1];
+	this.cellStart = count.clone();
+	this.px = new float[n]; this.py = new float[n];
+	this.dataset = new int[n]; this.series = new int[n]; this.item = new int[n];
+	for(int k=0;k<n;k++) {
+	    int j = count[cell[k]]++;
+	    this.px[j] = x[k]; this.py[j] = y[k];
+	    this.dataset[j] = d0[k]; this.series[j] = s0[k]; this.item[j] = i0[k];
+	}
+    }
+
+    public int size() { return this.px.length; }
+
+    public boolean covers(Rectangle2D area) { return this.area.equals(area); }
+
+    // closest point to (x, y) within radius, or null
+    public Hit nearest(double x, double y, double radius) {
+	int c0 = Math.max(0, (int)((x-radius-area.getX())/CELL));
+	int c1 = Math.min(cols-1, (int)((x+radius-area.getX())/CELL));
+	int r0 = Math.max(0, (int)((y-radius-area.getY())/CELL));
+	int r1 = Math.min(rows-1, (int)((y+radius-area.getY())/CELL));
+	int best = -1;
+	double bestD = radius*radius;
+	for(int r=r0;r<=r1;r++) {
+	    for(int c=c0;c<=c1;c++) {
+		int cell = r*cols+c;
+		for(int k=cellStart[cell];k<cellStart[cell+1];k++) {
+		    double dx = px[k]-x, dy = py[k]-y;
+		    double dd = dx*dx+dy*dy;
+		    if(dd<=bestD) {
+			bestD = dd;
+			best = k;
+		    }
+		}
+	    }
+	}
+	if(best<0) return null;
+	return new Hit(dataset[best], series[best], item[best], Math.sqrt(bestD));
+    }
+}
@@ -0,0 +1,163 @@
+package org.nyet.logfile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+
+import org.nyet.util.MMapFile;
+
+/*
+ Columnar dump of a dataset, one block of doubles per column per range,
+ so other tools can map it and use the columns without parsing CSV.
+ Everything is big endian (java order).
+
+   8 bytes	magic "ECUXCOL\0"
+   int		version (1)
+   int		column count
+   int		range count
+   columns	{ str id, str id2, str unit }
+   ranges	{ int start, int end, long offset }
+		start/end: inclusive sample index in the log
+		offset: file offset of the range's data
+   padding to 8 bytes
+   data		per range, per column, (end-start+1) doubles
+
+ str is an int byte length (-1 for null) followed by UTF-8 bytes.
+*/
+public class ColumnFile {
+    public static final byte[] MAGIC = {'E','C','U','X','C','O','L',0};
+    public static final int VERSION = 1;
+
+    public Dataset.DatasetId[] ids;
+    public int[][] ranges;	// { start, end }
+    private long[] offsets;
+    private ByteBuffer buf;
+
+    private static void writeString(DataOutputStream out, String s)
+	throws IOException {
+	if(s==null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	byte[] b = s.getBytes("UTF-8");
+	out.writeInt(b.length);
+	out.write(b);
+    }
+
+    private static String readString(ByteBuffer b) throws IOException {
+	int len = b.getInt();
+	if(len<0) return null;
+	byte[] s = new byte[len];
+	b.get(s);
+	return new String(s, "UTF-8");
+    }
+
+    private static byte[] header(ArrayList<Dataset.Column> columns,
+	ArrayList<Dataset.Range> ranges, long[] offsets) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+	out.write(MAGIC);
+	out.writeInt(VERSION);
+	out.writeInt(columns.size());
+	out.writeInt(ranges.size());
+	for(Dataset.Column c: columns) {
+	    writeString(out, c.getId());
+	    writeString(out, c.getId2());
+	    writeString(out, c.getUnits());
+	}
+	for(int i=0;i<ranges.size();i++) {
+	    out.writeInt(ranges.get(i).start);
+	    out.writeInt(ranges.get(i).end);
+	    out.writeLong(offsets[i]);
+	}
+	while(out.size()%8!=0) out.writeByte(0);
+	out.flush();
+	return bytes.toByteArray();
+    }
+
+    // write the columns (raw or derived) of d that exist, for every range
+    // that passes the filter. returns the ids actually written.
+    public static ArrayList<String> write(Dataset d, Comparable<?>[] keys,
+	File file) throws Exception {
+	ArrayList<Dataset.Column> columns = new ArrayList<Dataset.Column>();
+	ArrayList<String> written = new ArrayList<String>();
+	for(Comparable<?> k: keys) {
+	    if(written.contains(k.toString())) continue;
+	    // get() rather than exists(), so derived columns are built once
+	    Dataset.Column c = d.get(k);
+	    if(c==null || c.data==null || c.data.size()==0) continue;
+	    columns.add(c);
+	    written.add(k.toString());
+	}
+	ArrayList<Dataset.Range> ranges = d.getRanges();
+
+	// header size doesn't depend on the offsets in it
+	long[] offsets = new long[ranges.size()];
+	long offset = header(columns, ranges, offsets).length;
+	for(int i=0;i<ranges.size();i++) {
+	    offsets[i] = offset;
+	    offset += (long)ranges.get(i).size()*columns.size()*8;
+	}
+
+	DataOutputStream out = new DataOutputStream(
+	    new BufferedOutputStream(new FileOutputStream(file)));
+	try {
+	    out.write(header(columns, ranges, offsets));
+	    for(Dataset.Range r: ranges) {
+		for(Dataset.Column c: columns) {
+		    for(int i=r.start;i<=r.end;i++)
+			out.writeDouble(c.data.get(i));
+		}
+	    }
+	} finally {
+	    out.close();
+	}
+	return written;
+    }
+
+    // map an existing file
+    public ColumnFile(String filename) throws Exception {
+	MMapFile mmap = new MMapFile(filename, ByteOrder.BIG_ENDIAN);
+	this.buf = mmap.getByteBuffer();
+	byte[] magic = new byte[MAGIC.length];
+	this.buf.get(magic);
+	if(!java.util.Arrays.equals(magic, MAGIC))
+	    throw new Exception(filename + ": not a column file");
+	int version = this.buf.getInt();
+	if(version!=VERSION)
+	    throw new Exception(filename + ": unsupported version " + version);
+	int ncolumns = this.buf.getInt();
+	int nranges = this.buf.getInt();
+
+	this.ids = new Dataset.DatasetId[ncolumns];
+	for(int i=0;i<ncolumns;i++) {
+	    String id = readString(this.buf);
+	    String id2 = readString(this.buf);
+	    String unit = readString(this.buf);
+	    this.ids[i] = new Dataset.DatasetId(id, id2, unit);
+	}
+	this.ranges = new int[nranges][];
+	this.offsets = new long[nranges];
+	for(int i=0;i<nranges;i++) {
+	    this.ranges[i] = new int[] {this.buf.getInt(), this.buf.getInt()};
+	    this.offsets[i] = this.buf.getLong();
+	}
+    }
+
+    public int column(Comparable<?> id) {
+	for(int i=0;i<this.ids.length;i++)
+	    if(this.ids[i].id.equals(id.toString())) return i;
+	return -1;
+    }
+
+    // view of one column of one range, straight from the mapped file
+    public DoubleBuffer get(int range, int column) {
+	int size = this.ranges[range][1]-this.ranges[range][0]+1;
+	ByteBuffer b = this.buf.duplicate();
+	b.position((int)(this.offsets[range] + (long)column*size*8));
+	b.limit(b.position() + size*8);
+	return b.slice().asDoubleBuffer();
+    }
+}
@@ -4,12 +4,14 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
 import au.com.bytecode.opencsv.*;
 
 import org.nyet.util.DoubleArray;
+import org.nyet.util.Profiler;
 
 public class Dataset {
-    public class DatasetId implements Comparable {
+    public static class DatasetId implements Comparable {
 	public String id;
 	public String id2;
 	public String unit;
@@ -33,7 +35,10 @@ public class Dataset {
     private String fileId;
     private ArrayList<Column> columns;
     private ArrayList<Range> range_cache = new ArrayList<Range>();
+    private HashMap<String, Stats[]> stats_cache = new HashMap<String, Stats[]>();
     private int rows;
+    private int expectedRows = 0;	// while loading
+    protected Dialect dialect;
     protected ArrayList<String> lastFilterReasons = new ArrayList<String>();
 
     public class Range {
@@ -48,9 +53,62 @@ public class Dataset {
 	}
     }
 
+    private static final Pattern unprintable = Pattern.compile("[^\\p{Print}]");
+    // time stamps
+    private static final Pattern p1 =
+	Pattern.compile("\\d{2}:\\d{2}:\\d{2}.\\d{1,3}");
+    private static final Pattern p2 = Pattern.compile("\\d{2}:\\d{2}:\\d{2}");
+    private static final Pattern p3 = Pattern.compile("\\d{2}:\\d{2}.\\d{1,3}");
+
+    // one cell of a column. called from several threads by parseBlocks()
+    private void cell(DoubleArray.Builder b, String s) {
+	if (s.trim().length()==0) {
+	    b.appendMissing();
+	    return;
+	}
+
+	// nuke non-printable chars
+	s=unprintable.matcher(s).replaceAll("");
+	if (this.dialect!=null && this.dialect.decimal!='.')
+	    s=s.replace(this.dialect.decimal, '.');
+
+	// look for time stamps, convert to seconds
+	SimpleDateFormat fmt=null;
+	if (p1.matcher(s).matches()) {
+	    fmt = new SimpleDateFormat("HH:mm:ss.SSS");
+	} else if (p2.matcher(s).matches()) {
+	    fmt = new SimpleDateFormat("HH:mm:ss");
+	} else if (p3.matcher(s).matches()) {
+	    fmt = new SimpleDateFormat("mm:ss.SSS");
+	}
+	try {
+	    if (fmt != null) {
+		Date d = fmt.parse(s);
+		b.append(Double.valueOf(d.getTime())/1000);
+	    } else {
+		b.append(Double.valueOf(s));
+	    }
+	} catch (Exception e) {
+	    b.appendMissing();
+	}
+    }
+
+    // one column over one range. missing rows (and NaNs) don't count.
+    public static class Stats {
+	public double min = Double.NaN, max = Double.NaN, mean = Double.NaN;
+	public int argmax = -1;	// row of max
+	public int count = 0;
+
+	public String toString() {
+	    return String.format("%d: %.2f-%.2f (max at %d), mean %.2f",
+		count, min, max, argmax, mean);
+	}
+    }
+
     public class Column {
 	private DatasetId id;
 	public DoubleArray data;
+	private DoubleArray.Builder loading = null;	// see add() and loaded()
 
 	public Column(Comparable<?> id, String units) {
 	    this(id, null, units, new DoubleArray());
@@ -72,36 +130,28 @@ public class Dataset {
 	    this.data = data;
 	}
 
+	// one cell per row, so columns stay lined up: empty or unparsable
+	// cells are kept as missing (see DoubleArray.isValid())
 	public void add(String s) {
-	    // nuke non-printable chars
-	    final Pattern p = Pattern.compile("[^\\p{Print}]");
-	    s=p.matcher(s).replaceAll("");
-
-	    // look for time stamps, convert to seconds
-	    final Pattern p1 = Pattern.compile("\\d{2}:\\d{2}:\\d{2}.\\d{1,3}");
-	    final Pattern p2 = Pattern.compile("\\d{2}:\\d{2}:\\d{2}");
-	    final Pattern p3 = Pattern.compile("\\d{2}:\\d{2}.\\d{1,3}");
-
-	    SimpleDateFormat fmt=null;
-	    if (p1.matcher(s).matches()) {
-		fmt = new SimpleDateFormat("HH:mm:ss.SSS");
-	    } else if (p2.matcher(s).matches()) {
-		fmt = new SimpleDateFormat("HH:mm:ss");
-	    } else if (p3.matcher(s).matches()) {
-		fmt = new SimpleDateFormat("mm:ss.SSS");
-	    }
-	    if (fmt != null) {
-		try {
-		    Date d = fmt.parse(s);
-		    data.append(Double.valueOf(d.getTime())/1000);
-		} catch (Exception e) {
-		}
-	    } else {
-		try {
-		    data.append(Double.valueOf(s));
-		} catch (Exception e) {
-		}
-	    }
+	    if (this.loading == null)
+		this.loading = new DoubleArray.Builder(Dataset.this.expectedRows);
+	    Dataset.this.cell(this.loading, s);
+	}
+
+	// a block of rows, parsed elsewhere
+	private void add(DoubleArray.Builder rows) {
+	    if (this.loading == null)
+		this.loading = new DoubleArray.Builder(Dataset.this.expectedRows);
+	    this.loading.append(rows);
+	}
+
+	// done add()ing: turn what was added into data. a column with
+	// nothing in it stays empty.
+	private void loaded() {
+	    if (this.loading == null) return;
+	    if (this.loading.missing() < this.loading.size())
+		this.data = this.loading.build();
+	    this.loading = null;
 	}
 
 	public String getId() {
@@ -206,44 +256,250 @@ public class Dataset {
 	    }
 	    throw new ClassCastException(o + ": Not a Key or a String!");
 	}
+	// same as equals() for Keys (a String is never equal to us in a map)
+	public int hashCode() {
+	    return (this.fn.hashCode()*31 + this.s.hashCode())*31 +
+		this.range.hashCode();
+	}
     }
 
     public Dataset(String filename, int verbose) throws Exception {
-	this.fileId = org.nyet.util.Files.filename(filename);
+	this(LogSource.file(new File(filename)), verbose);
+    }
+
+    public Dataset(LogSource src, int verbose) throws Exception {
+	this.fileId = src.name;
 	this.rows = 0;
 	this.columns = new ArrayList<Column>();
-	CSVReader reader = new CSVReader(new FileReader(filename));
+	Profiler.Timer t = Profiler.start("ParseHeaders");
+	InputStream in = new BufferedInputStream(src.open(), 64*1024);
+	this.dialect = Dialect.sniff(in);
+	if (verbose>0)
+	    System.out.println(this.fileId + ": " + this.dialect);
+	LineFeed feed = new LineFeed(this.dialect.reader(in));
+	CSVReader reader = new CSVReader(feed, this.dialect.separator,
+	    this.dialect.quote);
 	try {
 	    ParseHeaders(reader, verbose);
 	} catch ( Exception e ) {
-	    /* try semicolon separated */
-	    reader = new CSVReader(new FileReader(filename), ';');
-	    ParseHeaders(reader, verbose);
+	    reader.close();
+	    throw e;
+	} finally {
+	    t.stop();
 	}
 	for(int i=0;i<this.ids.length;i++)
 	    this.columns.add(new Column(this.ids[i].id,
 		this.ids[i].id2,
 		this.ids[i].unit));
 
-	String [] nextLine;
-	while((nextLine = reader.readNext()) != null) {
-	    if (nextLine.length>0) {
-		boolean gotone=false;
-		for(int i=0;i<nextLine.length;i++) {
- 		    if (nextLine[i].trim().length()>0
-			&& this.columns.size() > i) {
-			this.columns.get(i).add(nextLine[i]);
-			gotone=true;
+	t = Profiler.start("CSV parse");
+	final long bytes = src.bytes;
+	final int threads = Runtime.getRuntime().availableProcessors();
+	try {
+	    if (threads>1 && bytes>=PARALLEL) {
+		parseBlocks(feed, threads, bytes);
+	    } else {
+		String [] nextLine;
+		while((nextLine = reader.readNext()) != null) {
+		    if (nextLine.length>0) {
+			if (this.expectedRows==0 && bytes>0) {
+			    // guess the row count from the first row, so
+			    // columns are (about) the right size from the start
+			    long width = nextLine.length; // separators, newline
+			    for(String f : nextLine) width += f.length();
+			    this.expectedRows = (int)Math.min(
+				Integer.MAX_VALUE/2, bytes*21/20/width + 16);
+			}
+			if (!isRow(nextLine)) continue;
+			// every column gets a cell, empty or not
+			for(int i=0;i<this.columns.size();i++)
+			    this.columns.get(i).add(
+				i<nextLine.length?nextLine[i]:"");
+			this.rows++;
 		    }
 		}
-		if (gotone) this.rows++;
 	    }
+	} finally {
+	    reader.close();
 	}
+	for(Column c : this.columns) c.loaded();
+	t.stop();
 	buildRanges();
     }
 
+    // a line with something in one of the columns
+    private boolean isRow(String [] line) {
+	for(int i=0;i<line.length && i<this.columns.size();i++)
+	    if (line[i].trim().length()>0) return true;
+	return false;
+    }
+
+    // Logs at least PARALLEL bytes long are parsed in blocks of about
+    // BLOCK chars, a block per thread, and put back together in order.
+    private static final long PARALLEL = 4<<20;
+    private static final int BLOCK = 1<<20;
+
+    // Hands (CSVReader's) BufferedReader a line at most per read(), so
+    // it never reads past the headers: after them, parseBlocks() can take
+    // the rest in blocks.
+    private static class LineFeed extends Reader {
+	private final Reader in;
+	private final char[] buf = new char[64*1024];
+	private int pos = 0, end = 0;
+	private boolean lines = true;
+
+	LineFeed(Reader in) { this.in = in; }
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+	    if (len==0) return 0;
+	    if (this.pos==this.end) {
+		this.pos = 0;
+		this.end = Math.max(0, this.in.read(this.buf));
+		if (this.end==0) return -1;
+	    }
+	    int n = Math.min(len, this.end-this.pos);
+	    if (this.lines) {
+		for(int i=this.pos;i<this.pos+n;i++) {
+		    char c = this.buf[i];
+		    if (c!='\n' && c!='\r') continue;
+		    if (c=='\r' && i+1<this.end && this.buf[i+1]=='\n') i++;
+		    n = Math.min(n, i+1-this.pos);
+		    break;
+		}
+	    }
+	    System.arraycopy(this.buf, this.pos, cbuf, off, n);
+	    this.pos += n;
+	    return n;
+	}
+
+	public void close() throws IOException { this.in.close(); }
+    }
+
+    private class Block {
+	int rows = 0;
+	DoubleArray.Builder [] cols;
+    }
+
+    // the rows of text, which ends at a line end (or the end of the log)
+    private Block parseBlock(String text) throws IOException {
+	Block b = new Block();
+	int lines = 1;
+	for(int i=0;i<text.length();i++) if (text.charAt(i)=='\n') lines++;
+	b.cols = new DoubleArray.Builder[this.columns.size()];
+	for(int i=0;i<b.cols.length;i++)
+	    b.cols[i] = new DoubleArray.Builder(lines);
+
+	// the same as CSVReader.readNext(), on the lines of text
+	CSVParser parser = new CSVParser(this.dialect.separator,
+	    this.dialect.quote);
+	BufferedReader br = new BufferedReader(new StringReader(text));
+	String line;
+	String [] row = null;
+	while((line = br.readLine()) != null) {
+	    String [] r = parser.parseLineMulti(line);
+	    if (r.length>0) {
+		if (row==null) row = r;
+		else {
+		    String [] t = new String[row.length+r.length];
+		    System.arraycopy(row, 0, t, 0, row.length);
+		    System.arraycopy(r, 0, t, row.length, r.length);
+		    row = t;
+		}
+	    }
+	    if (parser.isPending()) continue;
+	    if (row!=null && row.length>0 && isRow(row)) {
+		for(int i=0;i<b.cols.length;i++)
+		    cell(b.cols[i], i<row.length?row[i]:"");
+		b.rows++;
+	    }
+	    row = null;
+	}
+	return b;
+    }
+
+    private void add(Block b) {
+	for(int i=0;i<b.cols.length;i++) this.columns.get(i).add(b.cols[i]);
+	this.rows += b.rows;
+    }
+
+    // the rows left in in, a block per thread. a block ends at the last
+    // line end in it that isn't inside quotes.
+    private void parseBlocks(LineFeed in, int threads, long bytes)
+	    throws Exception {
+	in.lines = false;
+	final char quote = this.dialect.quote;
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+	    char [] buf = new char[BLOCK];
+	    int have = 0;
+	    boolean eof = false;
+	    while (!eof || have>0) {
+		while (!eof && have<buf.length) {
+		    int n = in.read(buf, have, buf.length-have);
+		    if (n<0) eof = true;
+		    else have += n;
+		}
+		int cut = have;
+		if (!eof) {
+		    // last unquoted line end. "" and \" toggle twice.
+		    boolean quoted = false;
+		    cut = -1;
+		    for(int i=0;i<have;i++) {
+			char c = buf[i];
+			if (c==quote) quoted = !quoted;
+			else if (c=='\\' && i+1<have &&
+			    (buf[i+1]==quote || buf[i+1]=='\\')) i++;
+			else if (!quoted && (c=='\n' || c=='\r')) cut = i+1;
+		    }
+		    if (cut<0) {
+			// no line end yet: a bigger block
+			buf = Arrays.copyOf(buf, buf.length*2);
+			continue;
+		    }
+		}
+		final String text = new String(buf, 0, cut);
+		System.arraycopy(buf, cut, buf, 0, have-cut);
+		have -= cut;
+
+		if (pending.size()>=2*threads) add(pending.removeFirst().get());
+		Future<Block> f = pool.submit(new Callable<Block>() {
+		    public Block call() throws Exception {
+			return parseBlock(text);
+		    }
+		});
+		if (this.expectedRows==0 && bytes>0) {
+		    // guess the row count from the first block
+		    Block b = f.get();
+		    this.expectedRows = (int)Math.min(Integer.MAX_VALUE/2,
+			bytes*21/20*(b.rows+1)/cut + 16);
+		}
+		pending.add(f);
+	    }
+	    while (!pending.isEmpty()) add(pending.removeFirst().get());
+	} catch (ExecutionException e) {
+	    Throwable t = e.getCause();
+	    if (t instanceof Exception) throw (Exception)t;
+	    throw e;
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
     public ArrayList<Column> getColumns() {return this.columns;}
 
+    // store the columns in less memory, where that doesn't change them.
+    // returns the bytes the values take now.
+    public long pack() {
+	long bytes = 0;
+	for(Column c : this.columns) {
+	    if(c.data==null) continue;
+	    c.data.pack();
+	    bytes += c.data.bytes();
+	}
+	return bytes;
+    }
+
     public void ParseHeaders(CSVReader reader, int verbose) throws Exception {
 	String [] line = reader.readNext();
 	if (line.length>0 && line[0].trim().length()>0) {
@@ -271,10 +527,9 @@ public class Dataset {
     }
 
     public boolean exists(Comparable<?> id) {
-	if (this.get(id) == null) return false;
-	if (this.get(id).data == null) return false;
-	if (this.get(id).data.size() == 0) return false;
-	return true;
+	final Column c = this.get(id);
+	if (c == null || c.data == null) return false;
+	return c.data.size() != 0;
     }
 
     protected boolean dataValid(int i) { return true; }
@@ -286,6 +541,7 @@ public class Dataset {
 
     protected void buildRanges() {
         this.range_cache = new ArrayList<Range>();
+	synchronized(this.stats_cache) { this.stats_cache.clear(); }
 	Range r = null;
 	for(int i=0;i<this.rows; i++) {
 	    boolean end = false;
@@ -314,6 +570,48 @@ public class Dataset {
 	}
     }
 
+    // stats of id for each range, worked out once per buildRanges(). null
+    // if there is no such column.
+    public Stats[] getStats(Comparable<?> id) {
+	String k = id.toString();
+	synchronized(this.stats_cache) {
+	    Stats[] s = this.stats_cache.get(k);
+	    if(s!=null) return s;
+	}
+	final Column c = this.get(id);
+	if(c==null || c.data==null) return null;
+	ArrayList<Range> ranges = this.range_cache;
+	Stats[] s = new Stats[ranges.size()];
+	for(int i=0;i<s.length;i++) s[i] = stats(c.data, ranges.get(i));
+	synchronized(this.stats_cache) {
+	    // unless the ranges were rebuilt meanwhile
+	    if(ranges==this.range_cache) this.stats_cache.put(k, s);
+	}
+	return s;
+    }
+
+    public Stats getStats(Comparable<?> id, int range) {
+	Stats[] s = getStats(id);
+	if(s==null || range<0 || range>=s.length) return null;
+	return s[range];
+    }
+
+    private static Stats stats(DoubleArray d, Range r) {
+	Stats s = new Stats();
+	double sum = 0;
+	for(int i=r.start;i<=r.end && i<d.size();i++) {
+	    if(!d.isValid(i)) continue;
+	    double v = d.get(i);
+	    if(Double.isNaN(v)) continue;
+	    if(s.count==0 || v<s.min) s.min = v;
+	    if(s.count==0 || v>s.max) { s.max = v; s.argmax = i; }
+	    sum += v;
+	    s.count++;
+	}
+	if(s.count>0) s.mean = sum/s.count;
+	return s;
+    }
+
     public double[] getData(Key id, Range r) {
 	// only match the string portion of the key
 	final Column c = this.get(id.getString());
@@ -329,6 +627,8 @@ public class Dataset {
 
     public String getFileId() { return this.fileId; }
 
+    public Dialect getDialect() { return this.dialect; }
+
     public DatasetId [] getIds() { return this.ids; }
     public void setIds(DatasetId [] ids) { this.ids=ids; }
 
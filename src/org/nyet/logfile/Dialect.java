@@ -0,0 +1,172 @@
+package org.nyet.logfile;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+// How a CSV file is written: field separator, quote, decimal point and
+// character set. Guessed from the first few KB, so the file is only read
+// once, by one reader set up the right way.
+public class Dialect {
+    public static final int SAMPLE = 16*1024;
+    private static final char[] SEPARATORS = {',', ';', '\t', '|'};
+    private static final Pattern decimalPoint = Pattern.compile("-?\\d*\\.\\d+");
+    private static final Pattern decimalComma = Pattern.compile("-?\\d*,\\d+");
+
+    public char separator = ',';
+    public char quote = '"';
+    public char decimal = '.';
+    public Charset charset = Charset.defaultCharset();
+    public int bom = 0;	// bytes to skip
+
+    public String toString() {
+	return String.format("separator '%s', quote '%c', decimal '%c', %s",
+	    separator=='\t'?"\\t":String.valueOf(separator), quote, decimal,
+	    charset.name());
+    }
+
+    // in must support mark(); it is left where it was
+    public static Dialect sniff(InputStream in) throws IOException {
+	byte[] b = new byte[SAMPLE];
+	in.mark(SAMPLE);
+	int n = 0;
+	for(int r; n<b.length && (r = in.read(b, n, b.length-n)) > 0; n+=r);
+	in.reset();
+	return sniff(b, n, n==b.length);
+    }
+
+    // the first n bytes of a file, which may go on past them
+    public static Dialect sniff(byte[] b, int n, boolean more) {
+	Dialect d = new Dialect();
+	d.sniffCharset(b, n);
+	String text = new String(b, d.bom, n-d.bom, d.charset);
+	ArrayList<String> lines = new ArrayList<String>();
+	for(String l : text.split("\r\n|\r|\n")) lines.add(l);
+	// the last line was probably cut short
+	if(more && lines.size()>1) lines.remove(lines.size()-1);
+	d.sniffSeparator(lines);
+	d.sniffQuote(lines);
+	d.sniffDecimal(lines);
+	return d;
+    }
+
+    public Reader reader(InputStream in) throws IOException {
+	for(int i=0;i<this.bom;i++) in.read();
+	return new BufferedReader(new InputStreamReader(in, this.charset));
+    }
+
+    private void sniffCharset(byte[] b, int n) {
+	if(n>=3 && (b[0]&0xff)==0xef && (b[1]&0xff)==0xbb && (b[2]&0xff)==0xbf) {
+	    this.charset = Charset.forName("UTF-8");
+	    this.bom = 3;
+	} else if(n>=2 && (b[0]&0xff)==0xff && (b[1]&0xff)==0xfe) {
+	    this.charset = Charset.forName("UTF-16LE");
+	    this.bom = 2;
+	} else if(n>=2 && (b[0]&0xff)==0xfe && (b[1]&0xff)==0xff) {
+	    this.charset = Charset.forName("UTF-16BE");
+	    this.bom = 2;
+	} else {
+	    // plain ascii reads the same in anything; otherwise, if it's
+	    // not utf-8, it's most likely a windows export (VCDS)
+	    int utf8 = utf8(b, n);
+	    if(utf8>0) this.charset = Charset.forName("UTF-8");
+	    else if(utf8<0) this.charset = Charset.isSupported("windows-1252")?
+		Charset.forName("windows-1252"):Charset.forName("ISO-8859-1");
+	}
+    }
+
+    // 0 if all ascii, 1 if valid utf-8 (up to a character cut off at n),
+    // -1 if not utf-8
+    private static int utf8(byte[] b, int n) {
+	int ret = 0;
+	for(int i=0;i<n;i++) {
+	    int c = b[i]&0xff;
+	    if(c<0x80) continue;
+	    int more;
+	    if((c&0xe0)==0xc0) more = 1;
+	    else if((c&0xf0)==0xe0) more = 2;
+	    else if((c&0xf8)==0xf0) more = 3;
+	    else return -1;
+	    for(int j=1;j<=more;j++) {
+		if(i+j>=n) return ret;
+		if((b[i+j]&0xc0)!=0x80) return -1;
+	    }
+	    i += more;
+	    ret = 1;
+	}
+	return ret;
+    }
+
+    // c outside of quotes in line
+    private int count(String line, char c) {
+	int n = 0;
+	boolean quoted = false;
+	for(int i=0;i<line.length();i++) {
+	    char ch = line.charAt(i);
+	    if(ch==this.quote) quoted = !quoted;
+	    else if(ch==c && !quoted) n++;
+	}
+	return n;
+    }
+
+    // the separator that splits the most lines into the same number of
+    // fields. headers and preambles vary; the data rows agree.
+    private void sniffSeparator(ArrayList<String> lines) {
+	int[] score = new int[SEPARATORS.length];
+	for(int s=0;s<SEPARATORS.length;s++) {
+	    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+	    for(String l : lines) {
+		int c = count(l, SEPARATORS[s]);
+		if(c==0) continue;
+		Integer k = counts.get(c);
+		counts.put(c, k==null?1:k+1);
+	    }
+	    for(Integer k : counts.values()) score[s] = Math.max(score[s], k);
+	}
+	int best = 0;
+	for(int s=1;s<SEPARATORS.length;s++)
+	    if(score[s]>score[best]) best = s;
+	// a comma in a ';' or tab separated file is most likely a decimal
+	// comma, and those are just as regular as the separators
+	if(SEPARATORS[best]==',') {
+	    for(int s=1;s<SEPARATORS.length;s++)
+		if(score[s]>0 && score[s]*5>=score[best]*4) { best = s; break; }
+	}
+	if(score[best]>0) this.separator = SEPARATORS[best];
+    }
+
+    // ' only if fields are wrapped in it and " isn't used. VCDS writes
+    // group numbers as '115, which is no quote.
+    private void sniffQuote(ArrayList<String> lines) {
+	int dq = 0, sq = 0;
+	String sep = Pattern.quote(String.valueOf(this.separator));
+	for(String l : lines) {
+	    if(l.indexOf('"')>=0) dq++;
+	    for(String f : l.split(sep)) {
+		f = f.trim();
+		if(f.length()>1 && f.charAt(0)=='\'' && f.endsWith("'")) sq++;
+	    }
+	}
+	if(dq==0 && sq>0) this.quote = '\'';
+    }
+
+    // decimal comma if numbers mostly have one (can't with , separators)
+    private void sniffDecimal(ArrayList<String> lines) {
+	if(this.separator==',') return;
+	int points = 0, commas = 0;
+	String sep = Pattern.quote(String.valueOf(this.separator));
+	for(String l : lines) {
+	    for(String f : l.split(sep)) {
+		f = f.trim();
+		if(f.length()>1 && f.charAt(0)==this.quote &&
+		    f.charAt(f.length()-1)==this.quote)
+		    f = f.substring(1, f.length()-1).trim();
+		if(decimalPoint.matcher(f).matches()) points++;
+		else if(decimalComma.matcher(f).matches()) commas++;
+	    }
+	}
+	if(commas>points) this.decimal = ',';
+    }
+}
@@ -0,0 +1,145 @@
+package org.nyet.logfile;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.nyet.util.ReadAheadInputStream;
+
+// A log to read: a plain file, a gzipped one, or one entry of a zip.
+// Compressed logs are decompressed on a thread of their own, ahead of
+// whoever is parsing them.
+public class LogSource {
+    public static final int PLAIN = 0;
+    public static final int GZIP = 1;
+    public static final int ZIP = 2;
+
+    public final File file;
+    public final String entry;	// zip entry, or null
+    // file name, without .gz, or zip!entry (the entry's own name) so logs
+    // of the same name in different zips are told apart
+    public final String name;
+    public final long bytes;	// about how much there is to parse, 0 if unknown
+    public final int type;
+
+    private LogSource(File file, int type, String entry, String name,
+	long bytes) {
+	this.file = file;
+	this.type = type;
+	this.entry = entry;
+	this.name = name;
+	this.bytes = bytes;
+    }
+
+    public String toString() {
+	if(this.entry==null) return this.file.getPath();
+	return this.file.getPath() + ":" + this.entry;
+    }
+
+    // by magic number, not extension
+    public static int type(File f) throws IOException {
+	InputStream in = new FileInputStream(f);
+	try {
+	    int b0 = in.read(), b1 = in.read();
+	    if(b0==0x1f && b1==0x8b) return GZIP;
+	    if(b0=='P' && b1=='K' && in.read()==3 && in.read()==4) return ZIP;
+	    return PLAIN;
+	} finally {
+	    in.close();
+	}
+    }
+
+    // the logs in f: f itself, or each .csv in it if it is a zip
+    public static ArrayList<LogSource> list(File f) throws IOException {
+	ArrayList<LogSource> ret = new ArrayList<LogSource>();
+	int type = type(f);
+	if(type!=ZIP) {
+	    ret.add(file(f, type));
+	    return ret;
+	}
+	ZipFile zip = new ZipFile(f);
+	try {
+	    Enumeration<? extends ZipEntry> entries = zip.entries();
+	    while(entries.hasMoreElements()) {
+		ZipEntry e = entries.nextElement();
+		String name = new File(e.getName()).getName();
+		if(e.isDirectory() || e.getName().startsWith("__MACOSX/") ||
+		    name.startsWith(".") || !name.toLowerCase().endsWith(".csv"))
+		    continue;
+		ret.add(new LogSource(f, ZIP, e.getName(),
+		    f.getName() + "!" + name, Math.max(0, e.getSize())));
+	    }
+	} finally {
+	    zip.close();
+	}
+	if(ret.isEmpty())
+	    throw new IOException(f.getName() + ": no .csv files in zip");
+	return ret;
+    }
+
+    // one log: f, or the only one in it. a zip of several is an error,
+    // not its first: use list() and pick one.
+    public static LogSource file(File f) throws IOException {
+	int type = type(f);
+	if(type!=ZIP) return file(f, type);
+	ArrayList<LogSource> logs = list(f);
+	if(logs.size()>1)
+	    throw new IOException(f.getName() + ": " + logs.size() +
+		" logs in zip, not one");
+	return logs.get(0);
+    }
+
+    private static LogSource file(File f, int type) throws IOException {
+	String name = f.getName();
+	long bytes = f.length();
+	if(type==GZIP) {
+	    if(name.toLowerCase().endsWith(".gz"))
+		name = name.substring(0, name.length()-3);
+	    bytes = Math.max(bytes, gzipSize(f));
+	}
+	return new LogSource(f, type, null, name, bytes);
+    }
+
+    // gzip ends with the uncompressed size (mod 2^32, and only of the
+    // last member). good enough for an estimate.
+    private static long gzipSize(File f) throws IOException {
+	if(f.length()<4) return 0;
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try {
+	    raf.seek(f.length()-4);
+	    byte[] b = new byte[4];
+	    raf.readFully(b);
+	    return (b[0]&0xffL) | (b[1]&0xffL)<<8 | (b[2]&0xffL)<<16 |
+		(b[3]&0xffL)<<24;
+	} finally {
+	    raf.close();
+	}
+    }
+
+    public InputStream open() throws IOException {
+	switch(this.type) {
+	    case GZIP:
+		return new ReadAheadInputStream(new GZIPInputStream(
+		    new FileInputStream(this.file), 64*1024), this.name);
+	    case ZIP:
+		final ZipFile zip = new ZipFile(this.file);
+		ZipEntry e = zip.getEntry(this.entry);
+		if(e==null) {
+		    zip.close();
+		    throw new FileNotFoundException(this.toString());
+		}
+		// closing the entry closes the zip
+		InputStream in = new FilterInputStream(zip.getInputStream(e)) {
+		    public void close() throws IOException {
+			try { super.close(); } finally { zip.close(); }
+		    }
+		};
+		return new ReadAheadInputStream(in, this.name);
+	    default:
+		return new FileInputStream(this.file);
+	}
+    }
+}
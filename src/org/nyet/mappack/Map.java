@@ -548,15 +548,44 @@ public class Map implements Comparable<Object> {
 	return out.toString();
     }
 
+    // id with the junk after any '?' or ' ' stripped
+    public String idStem() {
+	return this.id.split("[? ]")[0];
+    }
+
     public boolean equals(Map map) {
-	String stem=map.id.split("[? ]")[0];
+	String stem=map.idStem();
 	if(stem.length()==0) return false;
 	return equals(stem);
     }
 
     public boolean equals(String id) {
 	if(id.length()==0 || this.id.length() == 0) return false;
-	return (id.equals(this.id.split("[? ]")[0]));
+	return (id.equals(this.idStem()));
+    }
+
+    // image span [start, end) of the map data
+    public int[] span() {
+	return new int[] {this.extent[0].v, this.extent[1].v};
+    }
+
+    // image span [start, end) of an axis, null if not stored in eeprom
+    public int[] xAxisSpan() { return axisSpan(this.x_axis); }
+    public int[] yAxisSpan() { return axisSpan(this.y_axis); }
+    private static int[] axisSpan(Axis a) {
+	if(a==null || a.addr==null || a.value.type==null) return null;
+	int len = a.size*a.value.type.width();
+	if(len<=0) return null;
+	return new int[] {a.addr.v, a.addr.v+len};
+    }
+
+    // move map data and eeprom axes, e.g. to match a new software version
+    public void relocate(int delta, int xdelta, int ydelta) {
+	// z axis shares extent[0]
+	this.extent[0].v += delta;
+	this.extent[1].v += delta;
+	if(this.x_axis.addr!=null) this.x_axis.addr.v += xdelta;
+	if(this.y_axis.addr!=null) this.y_axis.addr.v += ydelta;
     }
 
     // swap x and y; tunerpro crashes on Cols > 256
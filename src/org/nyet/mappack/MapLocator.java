@@ -0,0 +1,286 @@
+package org.nyet.mappack;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.ByteBuffer;
+
+import org.nyet.logfile.CSVRow;
+
+// Find the maps of a reference project (and its image) in a different
+// image, e.g. another software version of the same ecu, by searching for
+// the bytes each map (and any axes stored right in front of it) holds in
+// the reference image.
+public class MapLocator {
+    public static final int KEY = 8;		// bytes per search key
+    public static final int AXIS_WINDOW = 0x200;// axes this close share the map's delta
+    public static final int MAX_SPAN = 0x10000;	// ignore broken extents
+
+    public class Result implements Comparable<Object> {
+	public Map map;
+	public int addr;	// map address in the reference image
+	public int start, end;	// searched span in the reference image
+	public int[] xAxis = null, yAxis = null;	// axes outside the span
+	public int delta = 0, xdelta = 0, ydelta = 0;
+	public int matches = 0;	// occurrences of the span in the image
+	public boolean located = false;
+	public boolean inferred = false;	// delta taken from a neighbor
+	public String error = null;
+
+	private int id;
+	private byte[] pattern = null;
+	private int keyOffset = 0;
+	private int pos = -1;
+
+	private Result(Map m, int id) {
+	    this.map = m;
+	    this.id = id;
+	    int[] s = m.span();
+	    this.addr = this.start = s[0];
+	    this.end = s[1];
+	    int[] x = m.xAxisSpan(), y = m.yAxisSpan();
+	    // pull in axes stored just before the data
+	    if(x!=null && x[0]<this.start && x[0]>=this.start-AXIS_WINDOW)
+		this.start = x[0];
+	    else this.xAxis = x;
+	    if(y!=null && y[0]<this.start && y[0]>=this.start-AXIS_WINDOW)
+		this.start = y[0];
+	    else this.yAxis = y;
+	    // an axis pulled in by the other may now be inside the span
+	    if(this.xAxis!=null && this.xAxis[0]>=this.start &&
+		this.xAxis[1]<=this.end) this.xAxis = null;
+	    if(this.yAxis!=null && this.yAxis[0]>=this.start &&
+		this.yAxis[1]<=this.end) this.yAxis = null;
+	}
+
+	public String status() {
+	    if(error!=null) return "error";
+	    if(!located) return "unresolved";
+	    if(inferred) return "inferred";
+	    return "located";
+	}
+
+	public int compareTo(Object o) {
+	    return this.map.compareTo(((Result)o).map);
+	}
+
+	public String toString() {
+	    CSVRow row = new CSVRow();
+	    row.add(status());
+	    row.add(map.id);
+	    row.add(map.name);
+	    row.add(new HexValue(addr).toString());
+	    row.add(located?new HexValue(addr+delta).toString():"");
+	    row.add(end-start);
+	    row.add(matches);
+	    row.add(error!=null?error:"");
+	    return row.toString();
+	}
+    }
+
+    public ArrayList<Result> results = new ArrayList<Result>();
+    private ByteBuffer ref;
+    private int refLimit;
+
+    public MapLocator(Project p, ByteBuffer ref) {
+	this.ref = ref.duplicate();
+	this.refLimit = this.ref.limit();
+	if(p.maps==null) return;
+	for(Map m: p.maps) {
+	    Result r = new Result(m, this.results.size());
+	    this.results.add(r);
+	    if(r.end<=r.start || r.end-r.start>MAX_SPAN || r.start<0 ||
+		r.end>this.refLimit) {
+		r.error = "bad extent";
+		continue;
+	    }
+	    // a byte or two matches almost anywhere; take in the bytes
+	    // around it, which have to have moved with it
+	    if(r.end-r.start<KEY) {
+		int pad = KEY-(r.end-r.start);
+		r.start = Math.max(0, r.start-pad/2);
+		r.end = Math.min(this.refLimit, r.start+KEY);
+	    }
+	    r.pattern = new byte[r.end-r.start];
+	    for(int i=0;i<r.pattern.length;i++)
+		r.pattern[i] = this.ref.get(r.start+i);
+	}
+    }
+
+    // first key offset that isn't all one byte value (erased flash, zeros),
+    // -1 if there is none: such a key hits all over an image
+    private static int keyOffset(byte[] pattern) {
+	for(int k=0;k+KEY<=pattern.length;k++) {
+	    for(int i=1;i<KEY;i++)
+		if(pattern[k+i]!=pattern[k]) return k;
+	}
+	return -1;
+    }
+
+    private static boolean matches(ByteBuffer buf, int limit, int pos, byte[] pattern) {
+	if(pos<0 || pos+pattern.length>limit) return false;
+	for(int i=0;i<pattern.length;i++)
+	    if(buf.get(pos+i)!=pattern[i]) return false;
+	return true;
+    }
+
+    private boolean matchesRef(ByteBuffer buf, int limit, int[] span, int delta) {
+	if(span[0]+delta<0 || span[1]+delta>limit) return false;
+	for(int i=span[0];i<span[1];i++)
+	    if(buf.get(i+delta)!=this.ref.get(i)) return false;
+	return true;
+    }
+
+    // deltas of the located maps either side of addr, closest first
+    private static void candidates(TreeMap<Integer, Integer> deltas, int addr,
+	LinkedHashSet<Integer> out) {
+	java.util.Map.Entry<Integer, Integer> lo = deltas.floorEntry(addr);
+	java.util.Map.Entry<Integer, Integer> hi = deltas.ceilingEntry(addr);
+	if(lo!=null && hi!=null && hi.getKey()-addr < addr-lo.getKey()) {
+	    out.add(hi.getValue());
+	    out.add(lo.getValue());
+	    return;
+	}
+	if(lo!=null) out.add(lo.getValue());
+	if(hi!=null) out.add(hi.getValue());
+    }
+
+    private int axisDelta(ByteBuffer image, int limit, TreeMap<Integer, Integer> deltas,
+	int[] axis) {
+	LinkedHashSet<Integer> c = new LinkedHashSet<Integer>();
+	// an axis which is a map of its own
+	for(Result r: this.results)
+	    if(r.located && r.start<=axis[0] && r.end>=axis[1]) c.add(r.delta);
+	candidates(deltas, axis[0], c);
+	for(Integer d: c)
+	    if(matchesRef(image, limit, axis, d)) return d;
+	return Integer.MIN_VALUE;
+    }
+
+    // Search every span at once: each pattern is keyed by KEY bytes at its
+    // keyOffset, the image is hashed KEY bytes at a time per segment, in
+    // parallel, and every key hit is verified against the whole pattern.
+    // Spans that aren't unique (or too short to search, or all one byte
+    // value) take the delta of a located neighbor if the bytes there match.
+    public void locate(final ByteBuffer image) throws Exception {
+	final HashMap<Long, ArrayList<Result>> index =
+	    new HashMap<Long, ArrayList<Result>>();
+	for(Result r: this.results) {
+	    if(r.pattern==null || r.pattern.length<KEY) continue;
+	    r.keyOffset = keyOffset(r.pattern);
+	    if(r.keyOffset<0) continue;	// neighbors only
+	    long key = ByteBuffer.wrap(r.pattern).getLong(r.keyOffset);
+	    ArrayList<Result> l = index.get(key);
+	    if(l == null) {
+		l = new ArrayList<Result>();
+		index.put(key, l);
+	    }
+	    l.add(r);
+	}
+
+	final int limit = image.limit();
+	final int n = this.results.size();
+	final int threads = Runtime.getRuntime().availableProcessors();
+	final int last = limit-KEY;	// last key position
+	final int segment = (last+threads)/threads;
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	ArrayList<Future<int[][]>> futures = new ArrayList<Future<int[][]>>();
+	try {
+	    for(int t=0; t<threads; t++) {
+		final int from = t*segment;
+		final int to = Math.min(from+segment, last+1);
+		futures.add(pool.submit(new Callable<int[][]>() {
+		    public int[][] call() {
+			// absolute gets only, but keep a private view anyway
+			ByteBuffer buf = image.duplicate();
+			int[] count = new int[n];
+			int[] pos = new int[n];
+			for(int p=from; p<to; p++) {
+			    ArrayList<Result> l = index.get(buf.getLong(p));
+			    if(l == null) continue;
+			    for(Result r: l) {
+				int s = p-r.keyOffset;
+				if(!matches(buf, limit, s, r.pattern)) continue;
+				if(count[r.id]++ == 0) pos[r.id] = s;
+			    }
+			}
+			return new int[][] {count, pos};
+		    }
+		}));
+	    }
+	    for(Future<int[][]> f: futures) {
+		int[][] cp = f.get();
+		for(int i=0;i<n;i++) {
+		    if(cp[0][i]==0) continue;
+		    Result r = this.results.get(i);
+		    if(r.matches==0) r.pos = cp[1][i];
+		    r.matches += cp[0][i];
+		}
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+
+	ByteBuffer buf = image.duplicate();
+	TreeMap<Integer, Integer> deltas = new TreeMap<Integer, Integer>();
+	for(Result r: this.results) {
+	    if(r.matches!=1) continue;
+	    r.located = true;
+	    r.delta = r.pos - r.start;
+	    deltas.put(r.start, r.delta);
+	}
+
+	for(Result r: this.results) {
+	    if(r.located || r.pattern==null) continue;
+	    LinkedHashSet<Integer> c = new LinkedHashSet<Integer>();
+	    candidates(deltas, r.start, c);
+	    for(Integer d: c) {
+		if(matches(buf, limit, r.start+d, r.pattern)) {
+		    r.located = true;
+		    r.inferred = true;
+		    r.delta = d;
+		    break;
+		}
+	    }
+	}
+
+	for(Result r: this.results) {
+	    if(!r.located) continue;
+	    r.xdelta = r.ydelta = r.delta;
+	    if(r.xAxis!=null)
+		r.xdelta = axisDelta(buf, limit, deltas, r.xAxis);
+	    if(r.yAxis!=null)
+		r.ydelta = axisDelta(buf, limit, deltas, r.yAxis);
+	    if(r.xdelta==Integer.MIN_VALUE || r.ydelta==Integer.MIN_VALUE) {
+		r.located = false;
+		r.error = "axis not found";
+	    }
+	}
+    }
+
+    // move the located maps, return them; the rest are left alone
+    public ArrayList<Map> relocate() {
+	ArrayList<Map> out = new ArrayList<Map>();
+	for(Result r: this.results) {
+	    if(!r.located) continue;
+	    r.map.relocate(r.delta, r.xdelta, r.ydelta);
+	    out.add(r.map);
+	}
+	return out;
+    }
+
+    public int count(String status) {
+	int c = 0;
+	for(Result r: this.results)
+	    if(r.status().equals(status)) c++;
+	return c;
+    }
+
+    public static final String CSVHeader() {
+	final String[] header = {
+	    "Status","ID","Name","Address","New Address","Length","Matches",
+	    "Error"
+	    };
+	final CSVRow out = new CSVRow(header);
+	return out.toString();
+    }
+}
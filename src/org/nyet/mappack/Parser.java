@@ -167,15 +167,19 @@ public class Parser extends MMapFile {
 
     public ArrayList<Map> find(Map map) {
 	ArrayList<Map> matches = new ArrayList<Map>();
-	for (Project p: projects)
-	    matches.addAll(p.find(map));
+	for (Project p: projects) {
+	    ArrayList<Map> m = p.find(map);
+	    if (m!=null) matches.addAll(m);
+	}
 	return matches;
     }
 
     public ArrayList<Map> find(String id) {
 	ArrayList<Map> matches = new ArrayList<Map>();
-	for (Project p: projects)
-	    matches.addAll(p.find(id));
+	for (Project p: projects) {
+	    ArrayList<Map> m = p.find(id);
+	    if (m!=null) matches.addAll(m);
+	}
 	return matches;
     }
 
@@ -25,6 +25,8 @@ public class Project {
     public int numFolders;
     public TreeSet<Folder> folders = new TreeSet<Folder>();
     private int kpv;
+    // id stem -> matching maps, in map order. built on first lookup
+    private HashMap<String, ArrayList<Map>> idIndex = null;
 
     private void ParseHeader(ByteBuffer b) throws ParserException {
 	this.name = Parse.string(b);
@@ -222,19 +224,34 @@ public class Project {
 	}
     }
 
+    private synchronized HashMap<String, ArrayList<Map>> idIndex() {
+	if(this.idIndex == null) {
+	    this.idIndex = new HashMap<String, ArrayList<Map>>();
+	    for(Map m: this.maps) {
+		String stem = m.idStem();
+		if(stem.length()==0) continue;
+		ArrayList<Map> l = this.idIndex.get(stem);
+		if(l == null) {
+		    l = new ArrayList<Map>();
+		    this.idIndex.put(stem, l);
+		}
+		l.add(m);
+	    }
+	}
+	return this.idIndex;
+    }
+
+    // same as m.equals(map) for every m, without the linear scan
     public ArrayList<Map> find(Map map) {
 	if(this.maps == null) return null;
-	ArrayList<Map> matches = new ArrayList<Map>();
-	for(Map m: this.maps)
-	    if(m.equals(map)) matches.add(m);
-	return matches;
+	return find(map.idStem());
     }
 
     public ArrayList<Map> find(String id) {
 	if(this.maps == null) return null;
 	ArrayList<Map> matches = new ArrayList<Map>();
-	for(Map m: this.maps)
-	    if(m.equals(id)) matches.add(m);
+	ArrayList<Map> l = this.idIndex().get(id);
+	if(l != null) matches.addAll(l);
 	return matches;
     }
 
@@ -0,0 +1,217 @@
+package org.nyet.mappack;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.nyet.logfile.CSVRow;
+import org.nyet.util.Strings;
+
+public class ProjectDiff {
+    public class Entry implements Comparable<Object> {
+	public Map a;		// null if added
+	public Map b;		// null if removed
+	// filled in by compare()
+	public int cells = -1;	// cells compared, -1 if not compared
+	public int changed = 0;	// cells that differ
+	public double maxDelta = 0;
+	public String error = null;
+
+	public Entry(Map a, Map b) { this.a=a; this.b=b; }
+
+	public boolean added() { return this.a==null; }
+	public boolean removed() { return this.b==null; }
+	public boolean moved() {
+	    return a!=null && b!=null && a.extent[0].v!=b.extent[0].v;
+	}
+	public boolean renamed() {
+	    return a!=null && b!=null && !a.idStem().equals(b.idStem());
+	}
+	public boolean resized() {
+	    return a!=null && b!=null &&
+		(a.size.x!=b.size.x || a.size.y!=b.size.y);
+	}
+
+	public String status() {
+	    if(added()) return "added";
+	    if(removed()) return "removed";
+	    ArrayList<String> s = new ArrayList<String>();
+	    if(renamed()) s.add("renamed");
+	    if(moved()) s.add("moved");
+	    if(resized()) s.add("resized");
+	    if(changed>0) s.add("changed");
+	    if(error!=null) s.add("error");
+	    if(s.size()==0) return "same";
+	    return Strings.join(",", s);
+	}
+
+	private int address() {
+	    return (a!=null)?a.extent[0].v:b.extent[0].v;
+	}
+
+	// Sort by old address, added maps by their new address
+	public int compareTo(Object o) {
+	    Entry them = (Entry)o;
+	    int ret = this.address()-them.address();
+	    if(ret!=0) return ret;
+	    return (this.a!=null?this.a:this.b).compareTo(
+		them.a!=null?them.a:them.b);
+	}
+
+	public String toString() {
+	    Map m = (a!=null)?a:b;
+	    CSVRow row = new CSVRow();
+	    row.add(status());
+	    row.add(m.id);
+	    row.add(m.name);
+	    row.add((a!=null)?a.extent[0].toString():"");
+	    row.add((b!=null)?b.extent[0].toString():"");
+	    row.add((a!=null)?a.size.toString():"");
+	    row.add((b!=null)?b.size.toString():"");
+	    if(error!=null) {
+		row.add(error);
+		row.add("");
+		row.add("");
+	    } else if(cells>=0) {
+		row.add(cells);
+		row.add(changed);
+		row.add(maxDelta);
+	    } else {
+		row.add("");
+		row.add("");
+		row.add("");
+	    }
+	    return row.toString();
+	}
+    }
+
+    public ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    private static HashMap<Integer, ArrayList<Map>> addressIndex(Project p) {
+	HashMap<Integer, ArrayList<Map>> index =
+	    new HashMap<Integer, ArrayList<Map>>();
+	for(Map m: p.maps) {
+	    ArrayList<Map> l = index.get(m.extent[0].v);
+	    if(l == null) {
+		l = new ArrayList<Map>();
+		index.put(m.extent[0].v, l);
+	    }
+	    l.add(m);
+	}
+	return index;
+    }
+
+    private static Map firstUnused(ArrayList<Map> l, Set<Map> used) {
+	if(l == null) return null;
+	for(Map m: l)
+	    if(!used.contains(m)) return m;
+	return null;
+    }
+
+    // align maps from a (old) with b (new): first by id stem, preferring
+    // a match at the same address, then by address for what is left.
+    public ProjectDiff(Project a, Project b) {
+	if(a.maps==null || b.maps==null) return;
+
+	HashMap<Integer, ArrayList<Map>> bAddr = addressIndex(b);
+	Set<Map> used = Collections.newSetFromMap(new IdentityHashMap<Map, Boolean>());
+	ArrayList<Map> unmatched = new ArrayList<Map>();
+
+	for(Map m: a.maps) {
+	    Map match = null;
+	    if(m.idStem().length()>0) {
+		ArrayList<Map> l = b.find(m.idStem());
+		for(Map c: l) {
+		    if(!used.contains(c) && c.extent[0].v==m.extent[0].v) {
+			match = c;
+			break;
+		    }
+		}
+		if(match == null) match = firstUnused(l, used);
+	    }
+	    if(match == null) {
+		unmatched.add(m);
+		continue;
+	    }
+	    used.add(match);
+	    this.entries.add(new Entry(m, match));
+	}
+
+	for(Map m: unmatched) {
+	    Map match = firstUnused(bAddr.get(m.extent[0].v), used);
+	    // don't steal a map that has its own id match in a
+	    if(match != null && match.idStem().length()>0 &&
+		a.find(match.idStem()).size()>0)
+		match = null;
+	    if(match != null) used.add(match);
+	    this.entries.add(new Entry(m, match));
+	}
+
+	for(Map m: b.maps)
+	    if(!used.contains(m)) this.entries.add(new Entry(null, m));
+
+	Collections.sort(this.entries);
+    }
+
+    private static void compare(Entry e, ByteBuffer imageA, ByteBuffer imageB) {
+	if(e.a==null || e.b==null || e.resized()) return;
+	try {
+	    Double[][] da = new MapData(e.a, imageA).get();
+	    Double[][] db = new MapData(e.b, imageB).get();
+	    int cells = 0, changed = 0;
+	    double maxDelta = 0;
+	    for(int i=0;i<da.length;i++) {
+		for(int j=0;j<da[i].length;j++) {
+		    cells++;
+		    if(da[i][j].equals(db[i][j])) continue;
+		    changed++;
+		    double delta = Math.abs(db[i][j]-da[i][j]);
+		    if(delta>maxDelta) maxDelta = delta;
+		}
+	    }
+	    e.cells = cells;
+	    e.changed = changed;
+	    e.maxDelta = maxDelta;
+	} catch (RuntimeException ex) {
+	    // extent out of image, etc.
+	    e.error = ex.toString();
+	}
+    }
+
+    // diff the decoded data of every aligned pair, in parallel.
+    public void compare(final ByteBuffer imageA, final ByteBuffer imageB)
+	throws Exception {
+	final int threads = Runtime.getRuntime().availableProcessors();
+	final int n = this.entries.size();
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+	    for(int t=0; t<threads; t++) {
+		final int start = t;
+		futures.add(pool.submit(new Runnable() {
+		    public void run() {
+			// MapData moves the buffer position, so each thread
+			// gets its own view. duplicate() resets byte order.
+			ByteBuffer a = imageA.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer b = imageB.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			for(int i=start; i<n; i+=threads)
+			    compare(entries.get(i), a, b);
+		    }
+		}));
+	    }
+	    for(Future<?> f: futures) f.get();
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    public static final String CSVHeader() {
+	final String[] header = {
+	    "Change","ID","Name","Address","New Address","Size","New Size",
+	    "Cells","Cells changed","Max delta"
+	    };
+	final CSVRow out = new CSVRow(header);
+	return out.toString();
+    }
+}
@@ -1,5 +1,8 @@
 package org.nyet.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import vec_math.SavitzkyGolaySmoothing;
 import ru.sscc.spline.Spline;
 import ru.sscc.spline.polynomial.POddSplineCreator;
@@ -13,15 +16,161 @@ public class DoubleArray
     private double[] array;
     private int growthSize;
 
+    // pack()ed storage, instead of array
+    private short[] shorts = null;	// (shorts[i]+offset)/scale
+    private float[] floats = null;
+    private long offset = 0;
+    private double scale = 1;
+
+    // Rows with nothing logged: bit i clear means row i is missing, and
+    // holds NaN. null if none are (rows past the end of it aren't
+    // either). Results of ops share it, so append() copies it (once)
+    // before setting bits in it, unless this one is all that has it.
+    private long[] valid = null;
+    private boolean sharedValid = true;
+
+    // virtual: no storage, base.get(i)/divisor, or i/divisor without a base
+    private boolean virtual = false;
+    private DoubleArray base = null;
+    private double divisor = 1;
+
     public interface TransferFunction {
 	public double f(double x, double y);
     }
 
+    // Append only, for loading columns. Values go into chunks that are
+    // never grown or copied; build() lays them end to end, once. Give it
+    // a guess of the final size: if that was enough (and not more than
+    // 1/8 too much), build() copies nothing at all.
+    public static class Builder
+    {
+	private ArrayList<double[]> full = new ArrayList<double[]>();
+	private double[] chunk;
+	private int used = 0;	// of chunk
+	private int size = 0;
+	private long[] valid = null;	// from the first missing value on
+	private int missing = 0;
+
+	public Builder( int expected )
+	{
+	    this.chunk = new double[ Math.max( expected, 1024 ) ];
+	}
+
+	public void append( double d )
+	{
+	    if( valid != null ) {
+		grow( size );
+		valid[ size>>6 ] |= 1L<<size;
+	    }
+	    put( d );
+	}
+
+	// a row with nothing (usable) in it
+	public void appendMissing()
+	{
+	    track();
+	    grow( size );
+	    missing++;
+	    put( Double.NaN );
+	}
+
+	// everything in b, after what is here
+	public void append( Builder b )
+	{
+	    if( b.valid != null ) track();
+	    if( valid != null && b.size > 0 ) {
+		grow( size + b.size - 1 );
+		for( int i=0; i<b.size; i++ ) {
+		    if( b.valid == null || (b.valid[ i>>6 ] & 1L<<i) != 0 )
+			valid[ (size+i)>>6 ] |= 1L<<(size+i);
+		}
+	    }
+	    missing += b.missing;
+	    for( double[] c : b.full ) putAll( c, c.length );
+	    putAll( b.chunk, b.used );
+	}
+
+	// start keeping validity bits: all valid so far
+	private void track()
+	{
+	    if( valid != null ) return;
+	    valid = new long[ (size>>6) + 1 ];
+	    Arrays.fill( valid, 0, size>>6, -1L );
+	    valid[ size>>6 ] = (1L<<size)-1;	// size%64 rows
+	}
+
+	private void grow( int i )
+	{
+	    if( (i>>6) >= valid.length )
+		valid = Arrays.copyOf( valid, Math.max( 2*valid.length, (i>>6)+1 ) );
+	}
+
+	private void put( double d )
+	{
+	    if( used == chunk.length ) {
+		full.add( chunk );
+		// each chunk as big as all before it: few chunks, O(n) total
+		chunk = new double[ size ];
+		used = 0;
+	    }
+	    chunk[ used++ ] = d;
+	    size++;
+	}
+
+	private void putAll( double[] a, int n )
+	{
+	    for( int off=0; off<n; ) {
+		if( used == chunk.length ) {
+		    full.add( chunk );
+		    chunk = new double[ Math.max( size, n-off ) ];
+		    used = 0;
+		}
+		int k = Math.min( n-off, chunk.length-used );
+		System.arraycopy( a, off, chunk, used, k );
+		used += k;
+		size += k;
+		off += k;
+	    }
+	}
+
+	public int size() { return size; }
+	public int missing() { return missing; }
+
+	public DoubleArray build()
+	{
+	    double[] a = chunk;
+	    if( full.size() > 0 || chunk.length - used > used/8 ) {
+		a = new double[ size ];
+		int off = 0;
+		for( double[] c : full ) {
+		    System.arraycopy( c, 0, a, off, c.length );
+		    off += c.length;
+		}
+		System.arraycopy( chunk, 0, a, off, used );
+	    }
+	    DoubleArray out = wrap( a, size, valid==null?null:
+		Arrays.copyOf( valid, (size+63)>>6 ) );
+	    full = null;
+	    chunk = null;
+	    return out;
+	}
+    }
+
     public DoubleArray()
     {
         this( 1024 );
     }
 
+    // a, not a copy of it
+    private static DoubleArray wrap( double[] a, int size, long[] valid )
+    {
+	DoubleArray out = new DoubleArray( 0, Math.max( size, 1024 ) );
+	out.array = a;
+	out.sp = size;
+	out.valid = valid;
+	return out;
+    }
+
     public DoubleArray( double[] a)
     {
 	this(a.length);
@@ -47,70 +196,308 @@ public class DoubleArray
         array = new double[ initialSize ];
     }
 
+    private DoubleArray( DoubleArray base, int size, double divisor )
+    {
+	this.virtual = true;
+	this.base = base;
+	this.sp = size;
+	this.divisor = divisor;
+	this.growthSize = Math.max(size, 1);
+	this.valid = (base==null)?null:base.shareValid();
+    }
+
+    // 0, 1, ... size-1, generated on demand
+    public static DoubleArray index( int size )
+    {
+	return new DoubleArray(null, size, 1);
+    }
+
+    // this/d, calculated on demand, for as many values as this has now
+    public DoubleArray divView( double d )
+    {
+	return new DoubleArray(this, this.sp, d);
+    }
+
     public void append( double d )
     {
+	if( array == null ) unpack();
+	this.virtual = false;
+	this.base = null;
         if( sp >= array.length ) // time to grow!
         {
-            double[] tmpArray = new double[ array.length + growthSize ];
+	    // by at least half, or appending n values copies O(n^2)
+            double[] tmpArray = new double[ array.length +
+		Math.max( growthSize, array.length/2 ) ];
             System.arraycopy( array, 0, tmpArray, 0, array.length );
             array = tmpArray;
         }
         array[ sp ] = d;
+	if( valid != null && (sp>>6) < valid.length ) {
+	    if( sharedValid ) {
+		valid = valid.clone();
+		sharedValid = false;
+	    }
+	    valid[ sp>>6 ] |= 1L<<sp;
+	}
         sp += 1;
     }
 
+    // valid, for another array to share: append() copies it from now on
+    private long[] shareValid()
+    {
+	sharedValid = true;
+	return valid;
+    }
+
+    public boolean isValid( int i )
+    {
+	return valid == null || (i>>6) >= valid.length ||
+	    (valid[ i>>6 ] & 1L<<i) != 0;
+    }
+
+    public boolean hasMissing()
+    {
+	if( valid == null ) return false;
+	int w = 0;
+	for( ; w<(this.sp>>6) && w<valid.length; w++ )
+	    if( valid[ w ] != -1L ) return true;
+	long rest = (1L<<this.sp)-1;	// sp%64 rows in the last word
+	return w<valid.length && rest!=0 && (valid[ w ] & rest) != rest;
+    }
+
+    // word at a time: row i is valid in both if bit i is set in both
+    private static long[] and( long[] a, long[] b )
+    {
+	if( a == null || a == b ) return b;
+	if( b == null ) return a;
+	long[] out = new long[ Math.max( a.length, b.length ) ];
+	for( int w=0; w<out.length; w++ )
+	    out[ w ] = (w<a.length?a[ w ]:-1L) & (w<b.length?b[ w ]:-1L);
+	return out;
+    }
+
+    // NaN in out[i] where row start+i (i<len) is missing; only visits
+    // words that have a missing row in them
+    private static void mask( double[] out, int start, int len, long[] valid )
+    {
+	if( valid == null ) return;
+	int end = start + len;
+	for( int w=start>>6; w<valid.length && (w<<6)<end; w++ ) {
+	    long missing = ~valid[ w ];
+	    while( missing != 0 ) {
+		int i = (w<<6) + Long.numberOfTrailingZeros( missing );
+		missing &= missing-1;
+		if( i>=start && i<end ) out[ i-start ] = Double.NaN;
+	    }
+	}
+    }
+
+    // out (not a copy) as the result of an op, missing where valid says
+    private static DoubleArray result( double[] out, long[] valid )
+    {
+	mask( out, 0, out.length, valid );
+	return wrap( out, out.length, valid );
+    }
+
+    // this, and missing wherever d is too
+    public DoubleArray masked( DoubleArray d )
+    {
+	if( d.valid == null || d.valid == this.valid ) return this;
+	return result( this.toArray(),
+	    and( this.shareValid(), d.shareValid() ) );
+    }
+
+    // a (not a copy), missing wherever any of ds is
+    public static DoubleArray masked( double[] a, DoubleArray[] ds )
+    {
+	long[] valid = null;
+	for( DoubleArray d : ds ) valid = and( valid, d.shareValid() );
+	return result( a, valid );
+    }
+
+    // Missing values filled in on a line between their valid neighbours
+    // (or held, past the first or last). For ops that look at more than
+    // one row: a missing row shouldn't spread to the ones around it.
+    public DoubleArray filled()
+    {
+	if( valid == null ) return this;
+	double[] a = this.toArray();
+	int prev = -1;
+	for( int i=0; i<=this.sp; i++ ) {
+	    if( i<this.sp && !isValid( i ) ) continue;
+	    for( int j=prev+1; j<i; j++ ) {
+		if( prev<0 ) a[ j ] = (i<this.sp)?a[ i ]:Double.NaN;
+		else if( i==this.sp ) a[ j ] = a[ prev ];
+		else a[ j ] = a[ prev ] + (a[ i ]-a[ prev ])*(j-prev)/(i-prev);
+	    }
+	    prev = i;
+	}
+	return wrap( a, this.sp, null );
+    }
+
     public int size() { return sp; }
 
     public double[] toArray()
     {
-        double[] trimmedArray = new double[ sp ];
-        System.arraycopy( array, 0, trimmedArray, 0, trimmedArray.length );
-        return trimmedArray;
+	return this.toArray(0, this.sp-1);
     }
 
     public double[] toArray(int start, int end)	// end is inclusive
     {
-        double[] trimmedArray = new double[ end-start+1 ];
-	double[] out = this.array;
-	System.arraycopy( out, start, trimmedArray, 0, trimmedArray.length );
+	return this.toArray(start, end, new double[ end-start+1 ]);
+    }
+
+    // into trimmedArray (from 0), which has room: no allocation
+    public double[] toArray(int start, int end, double[] trimmedArray)
+    {
+	int n = end-start+1;
+	if( this.virtual ) {
+	    for(int i=0;i<n;i++)
+		trimmedArray[i] = this.get(start+i);
+	} else if( this.shorts != null ) {
+	    for(int i=0;i<n;i++)
+		trimmedArray[i] = (this.shorts[start+i]+this.offset)/this.scale;
+	    mask( trimmedArray, start, n, this.valid );
+	} else if( this.floats != null ) {
+	    for(int i=0;i<n;i++)
+		trimmedArray[i] = this.floats[start+i];
+	} else {
+	    System.arraycopy( this.array, start, trimmedArray, 0, n );
+	}
         return trimmedArray;
     }
 
+    // the backing array if there is one, else a widened copy
+    private double[] values()
+    {
+	return (this.array!=null)?this.array:this.toArray();
+    }
+
     public double[] toArray(int start)
     {
 	return this.toArray(start, this.sp-1);
     }
 
     public double get(int i) {
-	return i<this.sp?array[i]:0;
+	if(this.virtual)
+	    return (this.base==null?i:this.base.get(i))/this.divisor;
+	if(i>=this.sp) return 0;
+	if(this.shorts!=null)
+	    return isValid(i)?(this.shorts[i]+this.offset)/this.scale:Double.NaN;
+	if(this.floats!=null) return this.floats[i];
+	return this.array[i];
+    }
+
+    /*
+     Store the values in less memory, if it doesn't change them (much).
+     Logged channels are mostly a few decimal digits of an 8 or 16 bit
+     ecu value. Take the fewest decimals d that hold every value exactly:
+
+       shorts: v*10^d - offset fits in 16 bits, and widens back to
+	       exactly v. lossless, a quarter of the memory.
+       floats: float(v) is within a tenth of 10^-d of v. half the memory.
+
+     Otherwise nothing changes. Appending widens it back to doubles.
+    */
+    public void pack()
+    {
+	if( this.array == null || this.virtual || this.sp == 0 ) return;
+	double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+	for(int i=0;i<this.sp;i++) {
+	    double v = this.array[i];
+	    if(!isValid(i)) continue;
+	    if(Double.isNaN(v) || Double.isInfinite(v)) return;
+	    if(v<min) min=v;
+	    if(v>max) max=v;
+	}
+	int d;
+	double scale = 1;
+	for(d=0;d<=6;d++, scale*=10) {
+	    boolean ok = true;
+	    for(int i=0;i<this.sp && ok;i++)
+		ok = !isValid(i) ||
+		    Math.rint(this.array[i]*scale)/scale == this.array[i];
+	    if(ok) break;
+	}
+	if(d>6) return;	// not a decimal with a few digits
+
+	double lo = Math.rint(min*scale), hi = Math.rint(max*scale);
+	if(hi-lo < 0xffff) {
+	    long offset = (long)(lo + (hi-lo)/2);
+	    short[] shorts = new short[this.sp];
+	    boolean ok = true;
+	    for(int i=0;i<this.sp && ok;i++) {
+		if(!isValid(i)) continue;	// get() knows
+		shorts[i] = (short)((long)Math.rint(this.array[i]*scale)-offset);
+		ok = (shorts[i]+offset)/scale == this.array[i];
+	    }
+	    if(ok) {
+		this.shorts = shorts;
+		this.offset = offset;
+		this.scale = scale;
+		this.array = null;
+		return;
+	    }
+	}
+
+	float[] floats = new float[this.sp];
+	for(int i=0;i<this.sp;i++) {
+	    floats[i] = (float)this.array[i];	// NaN stays NaN
+	    if(Math.abs(floats[i]-this.array[i]) > 0.1/scale) return;
+	}
+	this.floats = floats;
+	this.array = null;
+    }
+
+    public boolean isPacked() { return this.array == null && !this.virtual; }
+    public boolean isVirtual() { return this.virtual; }
+
+    // bytes used by the values
+    public long bytes()
+    {
+	if(this.virtual) return 0;
+	if(this.shorts!=null) return 2L*this.shorts.length;
+	if(this.floats!=null) return 4L*this.floats.length;
+	return 8L*this.array.length;
+    }
+
+    private void unpack()
+    {
+	this.array = this.toArray(0, this.sp-1);
+	if( this.array.length == 0 ) this.array = new double[ this.growthSize ];
+	this.shorts = null;
+	this.floats = null;
     }
 
     public double[] _func(TransferFunction f, double d) {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp;i++) {
-	    out[i]=f.f(this.array[i], d);
+	    out[i]=f.f(array[i], d);
 	}
 	return out;
     }
     public DoubleArray func(TransferFunction f) {
-	return new DoubleArray(this._func(f, Double.NaN));
+	return result(this._func(f, Double.NaN), this.shareValid());
     }
     public DoubleArray func(TransferFunction f, double x) {
-	return new DoubleArray(this._func(f, x));
+	return result(this._func(f, x), this.shareValid());
     }
 
     public double[] _func(TransferFunction f, double[] d) {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp && i<d.length;i++) {
-	    out[i]=f.f(this.array[i], d[i]);
+	    out[i]=f.f(array[i], d[i]);
 	}
 	return out;
     }
     public DoubleArray func(TransferFunction f, double[] x) {
-	return new DoubleArray(this._func(f, x));
+	return result(this._func(f, x), this.shareValid());
     }
     public DoubleArray func(TransferFunction f, DoubleArray x) {
-	return new DoubleArray(this._func(f, x.toArray()));
+	return result(this._func(f, x.toArray()),
+	    and(this.shareValid(), x.shareValid()));
     }
 
     private static TransferFunction fAdd = new TransferFunction() {
@@ -132,7 +519,7 @@ public class DoubleArray
 	    return x*y;
     }};
     public DoubleArray mult(double d) { return func(fMult, d); }
-    public DoubleArray mult(DoubleArray d) { return func(fMult, d.toArray()); }
+    public DoubleArray mult(DoubleArray d) { return func(fMult, d); }
 
     private static TransferFunction fDiv = new TransferFunction() {
 	public final double f(double x, double y) {
@@ -146,7 +533,7 @@ public class DoubleArray
 	    return Math.pow(x,y);
     }};
     public DoubleArray pow(double d) {
-	return new DoubleArray(this._func(fPow, d));
+	return result(this._func(fPow, d), this.shareValid());
     }
 
     public double[] _ident(double x) {
@@ -157,67 +544,73 @@ public class DoubleArray
 	return out;
     }
     public DoubleArray ident(double x) {
-	return new DoubleArray(this._ident(x));
+	return result(this._ident(x), null);
     }
 
     public double[] _inverse() {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp;i++) {
 	    out[i]=(array[i]==0)?0:1/array[i];
 	}
 	return out;
     }
     public DoubleArray inverse() {
-	return new DoubleArray(this._inverse());
+	return result(this._inverse(), this.shareValid());
     }
 
     public double[] _abs() {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp;i++) {
-	    out[i]=Math.abs(this.array[i]);
+	    out[i]=Math.abs(array[i]);
 	}
 	return out;
     }
     public DoubleArray abs() {
-	return new DoubleArray(this._abs());
+	return result(this._abs(), this.shareValid());
     }
 
     public double[] _min(double d) {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp;i++) {
-	    out[i]=Math.min(this.array[i],d);
+	    out[i]=Math.min(array[i],d);
 	}
 	return out;
     }
     public DoubleArray min(double d) {
-	return new DoubleArray(this._min(d));
+	return result(this._min(d), this.shareValid());
     }
 
     public double[] _max(double d) {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp;i++) {
-	    out[i]=Math.max(this.array[i],d);
+	    out[i]=Math.max(array[i],d);
 	}
 	return out;
     }
     public DoubleArray max(double d) {
-	return new DoubleArray(this._max(d));
+	return result(this._max(d), this.shareValid());
     }
 
     public double[] _max(double[] d) {
         double[] out = new double[ sp ];
+	double[] array = this.values();
 	for(int i=0;i<this.sp && i<d.length;i++) {
-	    out[i]=Math.max(this.array[i],d[i]);
+	    out[i]=Math.max(array[i],d[i]);
 	}
 	return out;
     }
     public DoubleArray max(DoubleArray d) {
-	return new DoubleArray(this._max(d.toArray()));
+	return result(this._max(d.toArray()),
+	    and(this.shareValid(), d.shareValid()));
     }
 
     public boolean isZero() {
 	for(int i=0;i<this.sp;i++) {
-	    if (this.array[i]!=0) return false;
+	    if (this.isValid(i) && this.get(i)!=0) return false;
 	}
 	return true;
     }
@@ -243,10 +636,11 @@ public class DoubleArray
 	}
     }
     public DoubleArray derivative(DoubleArray d) {
-	return new DoubleArray(this._derivative(d.toArray(), 0));
+	return this.derivative(d, 0);
     }
     public DoubleArray derivative(DoubleArray d, int window) {
-	return new DoubleArray(this._derivative(d.toArray(), window));
+	return result(this.filled()._derivative(d.filled().toArray(), window),
+	    and(this.shareValid(), d.shareValid()));
     }
 
     public double[] _integral(double[] d, double min, double max) {
@@ -264,25 +658,26 @@ public class DoubleArray
 	return out;
     }
     public DoubleArray integral(DoubleArray d) {
-	return new DoubleArray(this._integral(d.toArray(), Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+	return this.integral(d, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
     }
     public DoubleArray integral(DoubleArray d, double min) {
-	return new DoubleArray(this._integral(d.toArray(), min, Double.POSITIVE_INFINITY));
+	return this.integral(d, min, Double.POSITIVE_INFINITY);
     }
     public DoubleArray integral(DoubleArray d, double min, double max) {
-	return new DoubleArray(this._integral(d.toArray(), min, max));
+	return result(this.filled()._integral(d.filled().toArray(), min, max),
+	    and(this.shareValid(), d.shareValid()));
     }
 
     public DoubleArray smooth() {
-	if(this.sp<4) return new DoubleArray(this.toArray());
+	if(this.sp<4) return result(this.toArray(), this.shareValid());
 	if(this.sp<10) return movingAverage(this.sp/4);
 	SavitzkyGolaySmoothing s = new SavitzkyGolaySmoothing(5,5);
-	return new DoubleArray(s.smoothAll(this.toArray()));
+	return result(s.smoothAll(this.filled().toArray()), this.shareValid());
     }
 
     public DoubleArray movingAverage(int window) {
 	MovingAverageSmoothing s = new MovingAverageSmoothing(window);
-	return new DoubleArray(s.smoothAll(this.toArray()));
+	return result(s.smoothAll(this.filled().toArray()), this.shareValid());
     }
 
     public Spline spline(int order, double[] mesh) {
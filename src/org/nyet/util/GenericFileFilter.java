@@ -3,19 +3,22 @@ import java.io.File;
 import javax.swing.filechooser.FileFilter;
 
 public class GenericFileFilter extends FileFilter implements java.io.FileFilter {
-    private String ext;
+    private String[] exts;
     private String description;
     private boolean allowDir;
 
     public GenericFileFilter (String ext, String desc) {
+	this(new String[] {ext}, desc);
+    }
+    public GenericFileFilter (String[] exts, String desc) {
 	super();
-	this.ext=ext;
+	this.exts=exts;
 	this.description=desc;
 	this.allowDir=true;
     }
     public GenericFileFilter (String ext) {
 	super();
-	this.ext=ext;
+	this.exts=new String[] {ext};
 	this.description="";
 	this.allowDir=false;
     }
@@ -36,7 +39,8 @@ public class GenericFileFilter extends FileFilter implements java.io.FileFilter
 	    return this.allowDir;
 	String extension = getExtension(f);
 	if(extension != null)
-	    if(extension.equals(this.ext)) return true;
+	    for(String ext : this.exts)
+		if(extension.equals(ext)) return true;
 
 	return false;
     }
@@ -0,0 +1,156 @@
+package org.nyet.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Wall time and allocated bytes per named phase, summed over all calls.
+// Times are inclusive, so nested phases are also counted in their parent.
+// Off unless setEnabled(true) or -Decuxplot.profile=true; when off, start()
+// hands back a timer that does nothing.
+//
+//   Profiler.Timer t = Profiler.start("buildRanges");
+//   ...
+//   t.stop();
+public class Profiler {
+    public static class Phase {
+	public long count = 0;
+	public long nanos = 0;
+	public long maxNanos = 0;
+	public long bytes = 0;	// -1 if the jvm can't count allocations
+    }
+
+    public static class Timer {
+	private final String name;
+	private final long start;
+	private final long bytes;
+
+	private Timer(String name) {
+	    this.name = name;
+	    this.bytes = allocated();
+	    this.start = System.nanoTime();
+	}
+
+	// the one that does nothing
+	private Timer() {
+	    this.name = null;
+	    this.bytes = -1;
+	    this.start = 0;
+	}
+
+	public void stop() {
+	    if(this.name==null) return;
+	    long nanos = System.nanoTime() - this.start;
+	    long bytes = (this.bytes<0)?-1:allocated() - this.bytes;
+	    record(this.name, nanos, bytes);
+	}
+    }
+
+    private static final TreeMap<String, Phase> phases =
+	new TreeMap<String, Phase>();
+    private static final Timer NONE = new Timer();
+    private static java.lang.management.ThreadMXBean threads = null;
+    private static volatile boolean counting = false;
+    private static volatile boolean enabled = false;
+    private static boolean started = false;
+
+    static {
+	if(Boolean.getBoolean("ecuxplot.profile")) setEnabled(true);
+    }
+
+    public static boolean enabled() { return enabled; }
+
+    public static synchronized void setEnabled(boolean on) {
+	if(on && !started) {
+	    started = true;
+	    count();
+	}
+	enabled = on;
+    }
+
+    private static void count() {
+	try {
+	    threads = ManagementFactory.getThreadMXBean();
+	    if(threads instanceof com.sun.management.ThreadMXBean) {
+		com.sun.management.ThreadMXBean t =
+		    (com.sun.management.ThreadMXBean)threads;
+		if(t.isThreadAllocatedMemorySupported()) {
+		    t.setThreadAllocatedMemoryEnabled(true);
+		    counting = true;
+		}
+	    }
+	} catch (Throwable e) {
+	    // no allocation counts on this jvm
+	}
+    }
+
+    private static long allocated() {
+	if(!counting) return -1;
+	return ((com.sun.management.ThreadMXBean)threads).
+	    getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static Timer start(String name) {
+	return enabled?new Timer(name):NONE;
+    }
+
+    // name + " " + detail, only put together when on
+    public static Timer start(String name, Object detail) {
+	return enabled?new Timer(name + " " + detail):NONE;
+    }
+
+    private static synchronized void record(String name, long nanos,
+	long bytes) {
+	Phase p = phases.get(name);
+	if(p==null) {
+	    p = new Phase();
+	    phases.put(name, p);
+	}
+	p.count++;
+	p.nanos += nanos;
+	if(nanos>p.maxNanos) p.maxNanos = nanos;
+	p.bytes = (bytes<0 || p.bytes<0)?-1:p.bytes+bytes;
+    }
+
+    public static synchronized void reset() { phases.clear(); }
+
+    public static synchronized String report() {
+	StringBuilder out = new StringBuilder(String.format(
+	    "%-40s %8s %12s %12s %14s\n",
+	    "phase", "calls", "total ms", "max ms", "allocated KB"));
+	for(Map.Entry<String, Phase> e : phases.entrySet()) {
+	    Phase p = e.getValue();
+	    out.append(String.format("%-40s %8d %12.3f %12.3f %14s\n",
+		e.getKey(), p.count, p.nanos/1e6, p.maxNanos/1e6,
+		(p.bytes<0)?"-":String.valueOf(p.bytes/1024)));
+	}
+	return out.toString();
+    }
+
+    private static String quote(String s) {
+	StringBuilder out = new StringBuilder("\"");
+	for(char c : s.toCharArray()) {
+	    if(c=='"' || c=='\\') out.append('\\').append(c);
+	    else if(c<0x20) out.append(String.format("\\u%04x", (int)c));
+	    else out.append(c);
+	}
+	return out.append('"').toString();
+    }
+
+    public static synchronized String toJSON() {
+	StringBuilder out = new StringBuilder("{\n");
+	boolean first = true;
+	for(Map.Entry<String, Phase> e : phases.entrySet()) {
+	    Phase p = e.getValue();
+	    if(!first) out.append(",\n");
+	    first = false;
+	    out.append("  ").append(quote(e.getKey())).append(": {")
+		.append("\"calls\": ").append(p.count)
+		.append(", \"nanos\": ").append(p.nanos)
+		.append(", \"maxNanos\": ").append(p.maxNanos)
+		.append(", \"bytes\": ").append(p.bytes)
+		.append("}");
+	}
+	return out.append("\n}\n").toString();
+    }
+}
@@ -0,0 +1,106 @@
+package org.nyet.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Reads its source on a thread of its own, up to depth chunks ahead of
+// the reader. Puts (say) decompression and parsing on different cores.
+public class ReadAheadInputStream extends InputStream {
+    public static final int CHUNK = 64*1024;
+    public static final int DEPTH = 16;
+
+    private static final byte[] EOF = new byte[0];
+    private final BlockingQueue<byte[]> queue;
+    private final InputStream source;
+    private final Thread thread;
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+    private byte[] buf = null;
+    private int pos = 0;
+
+    public ReadAheadInputStream(InputStream source, String name) {
+	this(source, CHUNK, DEPTH, name);
+    }
+
+    public ReadAheadInputStream(InputStream source, final int chunk,
+	int depth, String name) {
+	this.source = source;
+	this.queue = new ArrayBlockingQueue<byte[]>(depth);
+	this.thread = new Thread("read ahead: " + name) {
+	    public void run() { pump(chunk); }
+	};
+	this.thread.setDaemon(true);
+	this.thread.start();
+    }
+
+    private void pump(int chunk) {
+	try {
+	    while(!this.closed) {
+		byte[] b = new byte[chunk];
+		int n = 0;
+		for(int r; n<chunk && (r = this.source.read(b, n, chunk-n)) >= 0;
+		    n+=r);
+		if(n>0) this.queue.put(n==chunk?b:Arrays.copyOf(b, n));
+		if(n<chunk) break;
+	    }
+	} catch (IOException e) {
+	    this.error = e;
+	} catch (InterruptedException e) {
+	    // closed
+	} finally {
+	    try { this.source.close(); } catch (IOException e) {}
+	    // after close(), nobody is waiting for it
+	    if(!this.closed) {
+		try { this.queue.put(EOF); } catch (InterruptedException e) {}
+	    }
+	}
+    }
+
+    // false at the end
+    private boolean fill() throws IOException {
+	if(this.buf==EOF) return false;
+	if(this.buf!=null && this.pos<this.buf.length) return true;
+	if(this.closed) throw new IOException("stream closed");
+	try {
+	    this.buf = this.queue.take();
+	} catch (InterruptedException e) {
+	    throw new InterruptedIOException();
+	}
+	this.pos = 0;
+	if(this.buf==EOF) {
+	    if(this.error!=null) throw this.error;
+	    return false;
+	}
+	return true;
+    }
+
+    public int read() throws IOException {
+	if(!fill()) return -1;
+	return this.buf[this.pos++]&0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+	if(len==0) return 0;
+	if(!fill()) return -1;
+	int n = Math.min(len, this.buf.length-this.pos);
+	System.arraycopy(this.buf, this.pos, b, off, n);
+	this.pos += n;
+	return n;
+    }
+
+    public int available() {
+	if(this.buf==null || this.buf==EOF) return 0;
+	return this.buf.length-this.pos;
+    }
+
+    public void close() {
+	if(this.closed) return;
+	this.closed = true;
+	this.thread.interrupt();
+	this.queue.clear();
+    }
+}